@@ -0,0 +1,94 @@
+package trafficsim;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The per-car pieces of a step in isolation: leader lookup, lane-change
+ * evaluation, and taking/restoring a lane's front-to-back order. Each call
+ * works on the next car in turn, so the whole road is sampled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CarBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int cars;
+
+    @Param({"2", "4"})
+    public int lanes;
+
+    private SimEngine engine;
+    private int[] laneOrder;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        SimConfig config = SimConfig.defaults()
+                .withLanes(lanes)
+                .withCars(cars)
+                .withRightLaneEnd(3000)
+                .withSeed(1234)
+                .withVisualize(false);
+        Traffic traffic = Traffic.createSim(config);
+        // Let the road settle so lanes are realistically mixed
+        for (int i = 0; i < 50; i++) {
+            traffic.step();
+        }
+        engine = traffic.engine();
+        laneOrder = new int[cars];
+    }
+
+    private int nextCar() {
+        int id = next;
+        next = (next + 1) % cars;
+        return id;
+    }
+
+    @Benchmark
+    public int findFrontCarSameLane() {
+        int id = nextCar();
+        return engine.findFrontCar(id, engine.store().lane(id));
+    }
+
+    @Benchmark
+    public int findFrontCarOtherLane() {
+        int id = nextCar();
+        int lane = engine.store().lane(id);
+        return engine.findFrontCar(id, lane == 1 ? 2 : lane - 1);
+    }
+
+    @Benchmark
+    public int tryLaneChange() {
+        return engine.chooseLane(nextCar());
+    }
+
+    @Benchmark
+    public void laneSnapshot(Blackhole bh) {
+        for (int lane = 1; lane <= lanes; lane++) {
+            bh.consume(engine.laneIndex().copyFrontToBack(lane, laneOrder));
+        }
+    }
+
+    @Benchmark
+    public void laneResort() {
+        for (int lane = 1; lane <= lanes; lane++) {
+            engine.laneIndex().resortLane(lane);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package trafficsim;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of one {@link Traffic#step()} (visualization off) as the road gets
+ * busier, with and without the right-lane merge bottleneck.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StepBenchmark {
+    @Param({"100", "1000", "10000", "100000"})
+    public int cars;
+
+    @Param({"1", "2", "4", "8"})
+    public int lanes;
+
+    @Param({"false", "true"})
+    public boolean merge;
+
+    private Traffic traffic;
+
+    // A fresh road per iteration keeps density comparable between iterations
+    @Setup(Level.Iteration)
+    public void setUp() {
+        SimConfig config = SimConfig.defaults()
+                .withLanes(lanes)
+                .withCars(cars)
+                .withRightLaneEnd(merge ? 3000 : -1)
+                .withSeed(1234)
+                .withVisualize(false);
+        traffic = Traffic.createSim(config);
+    }
+
+    @Benchmark
+    public void step() {
+        traffic.step();
+    }
+}
@@ -0,0 +1,44 @@
+package trafficsim;
+
+import java.util.Arrays;
+
+/**
+ * When vehicles turn up at the entrance of an open road. Each call returns
+ * the next arrival time in seconds, never earlier than the previous one, or
+ * {@link Double#POSITIVE_INFINITY} once there are no more. Instances keep
+ * their own position, so use a fresh one per simulation.
+ */
+public interface ArrivalProcess {
+    double nextArrival(SimRandom random);
+
+    /** Arrivals at a constant average rate with exponential gaps between them. */
+    static ArrivalProcess poisson(double vehiclesPerHour) {
+        if (!(vehiclesPerHour > 0)) {
+            throw new IllegalArgumentException("vehiclesPerHour must be positive, was " + vehiclesPerHour);
+        }
+        double meanGap = 3600 / vehiclesPerHour;
+        return new ArrivalProcess() {
+            private double time;
+
+            @Override
+            public double nextArrival(SimRandom random) {
+                time += -Math.log(1 - random.nextDouble()) * meanGap;
+                return time;
+            }
+        };
+    }
+
+    /** Arrivals at the given times in seconds (e.g. replayed from detector counts), in any order. */
+    static ArrivalProcess schedule(double... times) {
+        double[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return new ArrivalProcess() {
+            private int next;
+
+            @Override
+            public double nextArrival(SimRandom random) {
+                return next < sorted.length ? sorted[next++] : Double.POSITIVE_INFINITY;
+            }
+        };
+    }
+}
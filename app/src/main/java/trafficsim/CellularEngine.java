@@ -0,0 +1,249 @@
+package trafficsim;
+
+import java.util.Arrays;
+
+/**
+ * A coarse cellular-automaton alternative to {@link SimEngine}, after Nagel
+ * and Schreckenberg, for regional runs where throughput matters more than
+ * detail. Lanes are cut into cells of {@value #CELL_FT} feet holding at most
+ * one vehicle, and every tick each vehicle, from the state at the start of
+ * the tick:
+ * <ol>
+ * <li>accelerates by one cell per tick up to its own top speed;</li>
+ * <li>slows to the number of empty cells ahead of it (and before the lane
+ *     end in the dropping lane);</li>
+ * <li>with probability {@value #SLOWDOWN}, if moving, slows by one more;</li>
+ * <li>moves that many cells.</li>
+ * </ol>
+ * Before that, lane changes follow the detailed model's rules in cells: a
+ * vehicle blocked ahead tries left, then right, and moves over if its cell in
+ * the other lane is free, nobody is within a top speed behind it there and
+ * the gap ahead is longer; in the dropping lane within 600 feet of its end it
+ * must merge left, and nobody merges into that stretch.
+ *
+ * Occupancy is one bitset per lane over the cells the vehicles span, rebuilt
+ * from the {@link VehicleStore} every tick, so vehicles changed from outside
+ * between ticks are picked up. Positions are written back as cell centres
+ * and speeds as cells per tick in mph. The lane index is not kept up to date
+ * while stepping; {@link #syncIndex()} re-sorts it before it is read.
+ *
+ * A tick moves whole cells, so the tick should be about a second (the usual
+ * choice for this model); top speeds round to whole cells per tick.
+ */
+public class CellularEngine {
+    public static final double CELL_FT = 25;
+    public static final double SLOWDOWN = 0.2;
+    private static final double MERGE_ZONE_FT = 600;
+
+    private final SimEngine engine;
+    private final VehicleStore store;
+    private final SimRandom random;
+    private final int lanes;
+    private final double dt;
+    private final long endCell;
+    private final int mergeCells;
+
+    private long[] cells = new long[0];
+    private byte[] speeds = new byte[0];
+    private byte[] topSpeeds = new byte[0];
+    private long[][] occupied;
+    private long origin;
+    private int words;
+    private int fastest;
+    private boolean indexStale;
+
+    public CellularEngine(SimEngine engine, SimRandom random, double rightLaneEnd, double dt) {
+        if (dt < 0.5) {
+            throw new IllegalArgumentException("A cellular tick moves whole cells and should be about a second, was " + dt);
+        }
+        this.engine = engine;
+        this.store = engine.store();
+        this.random = random;
+        this.lanes = engine.getNumLanes();
+        this.dt = dt;
+        this.endCell = rightLaneEnd > 0 ? (long) Math.floor(rightLaneEnd / CELL_FT) : Long.MAX_VALUE;
+        this.mergeCells = (int) Math.ceil(MERGE_ZONE_FT / CELL_FT);
+        this.occupied = new long[lanes][1];
+    }
+
+    /** {@code speedMPH} in whole cells per tick. */
+    private int toCells(double speedMPH) {
+        return (int) Math.min(Byte.MAX_VALUE, Math.round(speedMPH * 5280 / 3600 * dt / CELL_FT));
+    }
+
+    public void step() {
+        fill();
+        for (int id = 0; id < store.size(); id++) {
+            if (store.lane(id) > 0) {
+                changeLane(id);
+            }
+        }
+        TrafficStats stats = engine.stats();
+        for (int id = 0; id < store.size(); id++) {
+            int lane = store.lane(id);
+            if (lane == 0) {
+                continue;
+            }
+            long cell = cells[id];
+            int speed = Math.min(speeds[id] + 1, topSpeeds[id]);
+            speed = (int) Math.min(speed, gapAhead(lane, cell, speed));
+            if (speed > 0 && random.nextDouble() < SLOWDOWN) {
+                speed--;
+            }
+            double from = store.position(id);
+            double fromSpeed = store.speed(id);
+            store.setMotion(id, speed * CELL_FT / dt * 3600 / 5280, (cell + speed + 0.5) * CELL_FT);
+            if (stats != null) {
+                stats.moved(id, lane, from, store.position(id), fromSpeed, store.speed(id), dt);
+            }
+        }
+        indexStale = true;
+    }
+
+    /** Re-sorts the lane index if vehicles have moved since it was last read. */
+    public void syncIndex() {
+        if (indexStale) {
+            engine.laneIndex().rebuild();
+            indexStale = false;
+        }
+    }
+
+    private long cellOf(int id) {
+        return (long) Math.floor(store.position(id) / CELL_FT);
+    }
+
+    /**
+     * Reads every vehicle's cell and speeds in cells and sets the bits of the
+     * cells. A vehicle whose cell is taken (only possible in a starting layout
+     * finer than the cells) is put in the nearest free cell behind it.
+     */
+    private void fill() {
+        int n = store.size();
+        if (cells.length < n) {
+            cells = new long[n];
+            speeds = new byte[n];
+            topSpeeds = new byte[n];
+        }
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        fastest = 1;
+        for (int id = 0; id < n; id++) {
+            if (store.lane(id) > 0) {
+                long cell = cellOf(id);
+                cells[id] = cell;
+                speeds[id] = (byte) toCells(store.speed(id));
+                topSpeeds[id] = (byte) Math.max(1, toCells(store.maxSpeed(id)));
+                min = Math.min(min, cell);
+                max = Math.max(max, cell);
+                fastest = Math.max(fastest, topSpeeds[id]);
+            }
+        }
+        if (min > max) {
+            return;
+        }
+        // Room behind the last vehicle for pushed-back ones and ahead of the first for its move
+        origin = Math.floorDiv(min - n, 64) * 64;
+        long span = max + fastest + 2 - origin;
+        words = (int) (span / 64 + 1);
+        if (occupied[0].length < words) {
+            occupied = new long[lanes][Math.max(words, occupied[0].length * 2)];
+        } else {
+            for (long[] bits : occupied) {
+                Arrays.fill(bits, 0, words, 0);
+            }
+        }
+        for (int id = 0; id < n; id++) {
+            int lane = store.lane(id);
+            if (lane > 0) {
+                long cell = cells[id];
+                while (isSet(lane, cell)) {
+                    cell--;
+                }
+                if (cell != cells[id]) {
+                    cells[id] = cell;
+                    store.setPosition(id, (cell + 0.5) * CELL_FT);
+                }
+                set(lane, cell);
+            }
+        }
+    }
+
+    private void changeLane(int id) {
+        int lane = store.lane(id);
+        long cell = cells[id];
+        int speed = Math.min(speeds[id] + 1, topSpeeds[id]);
+        long gap = gapAhead(lane, cell, fastest + 1);
+        boolean mustMerge = lane == lanes && inMergeZone(cell);
+        if (gap >= speed && !mustMerge) {
+            return;
+        }
+        for (int dir = -1; dir <= 1; dir += 2) {
+            int newLane = lane + dir;
+            int lastLane = cell < endCell ? lanes : lanes - 1;
+            if (newLane < 1 || newLane > lastLane) {
+                continue;
+            }
+            if (newLane == lanes && inMergeZone(cell)) {
+                continue;
+            }
+            if (isSet(newLane, cell) || anySet(newLane, cell - fastest, cell)) {
+                continue;
+            }
+            if (mustMerge || gapAhead(newLane, cell, fastest + 1) > gap) {
+                clear(lane, cell);
+                set(newLane, cell);
+                store.setLane(id, newLane);
+                return;
+            }
+        }
+    }
+
+    private boolean inMergeZone(long cell) {
+        return endCell != Long.MAX_VALUE && endCell - cell < mergeCells;
+    }
+
+    /** Empty cells in front of {@code cell} in {@code lane}, counting no further than {@code reach}. */
+    private long gapAhead(int lane, long cell, long reach) {
+        long limit = cell + 1 + reach;
+        if (lane == lanes) {
+            limit = Math.min(limit, Math.max(cell + 1, endCell));
+        }
+        return nextSet(lane, cell + 1, limit) - cell - 1;
+    }
+
+    /** The first occupied cell in {@code [from, limit)} of {@code lane}, or {@code limit}. */
+    private long nextSet(int lane, long from, long limit) {
+        long[] bits = occupied[lane - 1];
+        long end = Math.min(limit, origin + (long) words * 64);
+        long i = Math.max(from, origin);
+        while (i < end) {
+            int rel = (int) (i - origin);
+            long word = bits[rel >>> 6] & (-1L << (rel & 63));
+            if (word != 0) {
+                long found = origin + ((long) (rel >>> 6) << 6) + Long.numberOfTrailingZeros(word);
+                return Math.min(found, limit);
+            }
+            i = origin + ((long) (rel >>> 6) + 1 << 6);
+        }
+        return limit;
+    }
+
+    private boolean anySet(int lane, long from, long to) {
+        return nextSet(lane, from, to) < to;
+    }
+
+    private boolean isSet(int lane, long cell) {
+        int rel = (int) (cell - origin);
+        return (occupied[lane - 1][rel >>> 6] & (1L << rel)) != 0;
+    }
+
+    private void set(int lane, long cell) {
+        int rel = (int) (cell - origin);
+        occupied[lane - 1][rel >>> 6] |= 1L << rel;
+    }
+
+    private void clear(int lane, long cell) {
+        int rel = (int) (cell - origin);
+        occupied[lane - 1][rel >>> 6] &= ~(1L << rel);
+    }
+}
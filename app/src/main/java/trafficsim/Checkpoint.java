@@ -0,0 +1,199 @@
+package trafficsim;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.UnaryOperator;
+
+/**
+ * Saves a whole simulation (config, tick, random state, stepping mode,
+ * lane-change throttle and every vehicle) to a compact binary file and
+ * restores it. A restored simulation continues bit-for-bit as the original
+ * would have, so one warmed-up baseline can be forked into many what-if runs.
+ * Synchronous stepping comes back on the calling thread, which gives the same
+ * results as a pool; set it up again to use one. Runs whose state a
+ * checkpoint would miss are refused: open roads, the cellular model and runs
+ * collecting {@link TrafficStats}. Listeners and metrics are not saved.
+ *
+ * Layout (little-endian): a fixed header with the config, tick, random state,
+ * stepping mode, free-flow horizon, lane-change interval and vehicle count,
+ * then one column per vehicle attribute as written by
+ * {@link VehicleStore#writeTo}, then, with a lane-change interval, two
+ * columns of throttle state. Columns move through a direct buffer in bulk.
+ */
+public final class Checkpoint {
+    private static final int MAGIC = 0x54434B31; // "TCK1"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 8 + 8 + 8 + 8 + 8 + 1 + 8 + 8 + 8 + 8 + 1 + 4 + 4 + 4;
+    private static final byte IN_PLACE = 0;
+    private static final byte SYNCHRONOUS = 1;
+    private static final byte SYNCHRONOUS_VECTOR = 2;
+    private static final int SCRATCH_BYTES = 1 << 20;
+
+    private Checkpoint() {
+    }
+
+    /** @throws IllegalStateException if the run has state a checkpoint doesn't cover */
+    public static void save(Traffic traffic, Path file) throws IOException {
+        if (traffic.getOpenBoundary() != null) {
+            throw new IllegalStateException("Checkpoints don't cover an open road's queue and arrivals");
+        }
+        if (traffic.usesCellularModel()) {
+            throw new IllegalStateException("Checkpoints don't cover the cellular model");
+        }
+        if (traffic.engine().stats() != null) {
+            throw new IllegalStateException("Checkpoints don't cover TrafficStats; save before collecting them");
+        }
+        SimEngine engine = traffic.engine();
+        SynchronousStepper synchronous = traffic.synchronousStepper();
+        byte stepping = synchronous == null ? IN_PLACE : synchronous.vectorKernel() ? SYNCHRONOUS_VECTOR : SYNCHRONOUS;
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer scratch = scratch();
+            SimConfig config = traffic.getConfig();
+            SimRandom random = traffic.random();
+            VehicleStore store = traffic.store();
+            scratch.putInt(MAGIC).putInt(VERSION)
+                .putInt(config.lanes()).putInt(config.cars())
+                .putDouble(config.dt()).putDouble(config.simTime())
+                .putDouble(config.rightLaneEnd()).putDouble(config.carLengthFt())
+                .putLong(config.seed()).put((byte) (config.visualize() ? 1 : 0)).putDouble(config.frameRate())
+                .putLong(traffic.getTick())
+                .putLong(random.state()).putLong(random.gamma())
+                .put(stepping).putInt(engine.freeFlowHorizon()).putInt(engine.laneChangeInterval())
+                .putInt(store.size());
+            scratch.flip();
+            writeFully(out, scratch);
+            store.writeTo(out, scratch);
+            if (engine.laneChangeInterval() > 1) {
+                engine.writeLaneChangeThrottle(out, scratch, store.size());
+            }
+        }
+    }
+
+    public static Traffic restore(Path file) throws IOException {
+        return restore(file, UnaryOperator.identity());
+    }
+
+    /**
+     * Restores a checkpoint with its config passed through {@code adjust} first,
+     * e.g. to fork the run with a different {@code rightLaneEnd} or sim time.
+     * Every vehicle's lane must still exist under the adjusted config.
+     */
+    public static Traffic restore(Path file, UnaryOperator<SimConfig> adjust) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer scratch = scratch();
+            scratch.limit(HEADER_BYTES);
+            readFully(in, scratch);
+            scratch.flip();
+            if (scratch.getInt() != MAGIC) {
+                throw new IOException("Not a checkpoint file");
+            }
+            int version = scratch.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version);
+            }
+            SimConfig config = SimConfig.defaults()
+                .withLanes(scratch.getInt()).withCars(scratch.getInt())
+                .withDt(scratch.getDouble()).withSimTime(scratch.getDouble())
+                .withRightLaneEnd(scratch.getDouble()).withCarLengthFt(scratch.getDouble())
+                .withSeed(scratch.getLong()).withVisualize(scratch.get() != 0).withFrameRate(scratch.getDouble());
+            long tick = scratch.getLong();
+            SimRandom random = SimRandom.restore(scratch.getLong(), scratch.getLong());
+            byte stepping = scratch.get();
+            int freeFlowHorizon = scratch.getInt();
+            int laneChangeInterval = scratch.getInt();
+            int count = scratch.getInt();
+            if (stepping < IN_PLACE || stepping > SYNCHRONOUS_VECTOR) {
+                throw new IOException("Unknown stepping mode " + stepping);
+            }
+
+            VehicleStore store = HeapVehicleStore.readFrom(in, scratch, count);
+            config = adjust.apply(config);
+            for (int id = 0; id < count; id++) {
+                if (store.lane(id) < 0 || store.lane(id) > config.lanes()) {
+                    throw new IllegalArgumentException("Vehicle " + id + " is in lane " + store.lane(id)
+                        + " but the restored road has " + config.lanes() + " lanes");
+                }
+            }
+            Traffic traffic = Traffic.restore(config, store, random, tick);
+            traffic.engine().setFreeFlowHorizon(freeFlowHorizon);
+            traffic.engine().setLaneChangeInterval(laneChangeInterval);
+            if (laneChangeInterval > 1) {
+                traffic.engine().readLaneChangeThrottle(in, scratch, count);
+            }
+            if (stepping != IN_PLACE) {
+                traffic.useSynchronousStepping(null, stepping == SYNCHRONOUS_VECTOR);
+            }
+            return traffic;
+        }
+    }
+
+    private static ByteBuffer scratch() {
+        return ByteBuffer.allocateDirect(SCRATCH_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static void writeInts(WritableByteChannel out, ByteBuffer scratch, int[] values, int count) throws IOException {
+        int per = scratch.capacity() / Integer.BYTES;
+        for (int from = 0; from < count; from += per) {
+            int n = Math.min(per, count - from);
+            scratch.clear();
+            scratch.asIntBuffer().put(values, from, n);
+            scratch.limit(n * Integer.BYTES);
+            writeFully(out, scratch);
+        }
+    }
+
+    static void writeDoubles(WritableByteChannel out, ByteBuffer scratch, double[] values, int count) throws IOException {
+        int per = scratch.capacity() / Double.BYTES;
+        for (int from = 0; from < count; from += per) {
+            int n = Math.min(per, count - from);
+            scratch.clear();
+            scratch.asDoubleBuffer().put(values, from, n);
+            scratch.limit(n * Double.BYTES);
+            writeFully(out, scratch);
+        }
+    }
+
+    static void readInts(ReadableByteChannel in, ByteBuffer scratch, int[] values, int count) throws IOException {
+        int per = scratch.capacity() / Integer.BYTES;
+        for (int from = 0; from < count; from += per) {
+            int n = Math.min(per, count - from);
+            scratch.clear().limit(n * Integer.BYTES);
+            readFully(in, scratch);
+            scratch.flip();
+            scratch.asIntBuffer().get(values, from, n);
+        }
+    }
+
+    static void readDoubles(ReadableByteChannel in, ByteBuffer scratch, double[] values, int count) throws IOException {
+        int per = scratch.capacity() / Double.BYTES;
+        for (int from = 0; from < count; from += per) {
+            int n = Math.min(per, count - from);
+            scratch.clear().limit(n * Double.BYTES);
+            readFully(in, scratch);
+            scratch.flip();
+            scratch.asDoubleBuffer().get(values, from, n);
+        }
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                throw new EOFException("Checkpoint ends early");
+            }
+        }
+    }
+}
@@ -9,9 +9,18 @@ public class Constants {
     public static double rightLaneEnd = -7000;
 
 
+    /**
+     * Single cars of the preset {@link VehicleType}s.
+     *
+     * @deprecated The cars are shared and mutable, and a simulation created
+     * from them turns them into views of its own vehicles, so one run's moves
+     * show up wherever else they are used. Use the {@link VehicleType}
+     * constants, and {@link VehicleType#newCar} for a car of one's own.
+     */
+    @Deprecated
     public static class ConstantCars{
-        public static final Car fastCar = new Car(0, 70, 10, 10, 0.7, 0.03);
-        public static final Car mediumCar = new Car(0, 50, 8, 10, 0.6, 0.025);
-        public static final Car slowCar = new Car(0, 30, 6, 10, 0.5, 0.02);
+        public static final Car fastCar = VehicleType.FAST.newCar(0);
+        public static final Car mediumCar = VehicleType.MEDIUM.newCar(0);
+        public static final Car slowCar = VehicleType.SLOW.newCar(0);
     }
 }
@@ -0,0 +1,188 @@
+package trafficsim;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * The default {@link VehicleStore}: one primitive array per attribute on the
+ * heap, indexed by vehicle id.
+ */
+public final class HeapVehicleStore extends VehicleStore {
+    private int size;
+    private int[] lane;
+    private double[] position;
+    private double[] speed;
+    private double[] maxSpeed;
+    private double[] maxAccel;
+    private double[] desiredGap;
+    private double[] kP;
+    private double[] kD;
+    private double[] length;
+
+    public HeapVehicleStore(int capacity) {
+        capacity = Math.max(1, capacity);
+        this.lane = new int[capacity];
+        this.position = new double[capacity];
+        this.speed = new double[capacity];
+        this.maxSpeed = new double[capacity];
+        this.maxAccel = new double[capacity];
+        this.desiredGap = new double[capacity];
+        this.kP = new double[capacity];
+        this.kD = new double[capacity];
+        this.length = new double[capacity];
+    }
+
+    @Override
+    public int add(int lane, double maxSpeedMPH, double maxAccelMPHSquared, double desiredDistance, double kP, double kD, double lengthFt) {
+        if (size == this.lane.length) {
+            grow();
+        }
+        int id = size++;
+        reuse(id, lane, maxSpeedMPH, maxAccelMPHSquared, desiredDistance, kP, kD, lengthFt);
+        return id;
+    }
+
+    @Override
+    public int allocate() {
+        if (size == this.lane.length) {
+            grow();
+        }
+        int id = size++;
+        reuse(id, 0, 0, 0, 0, 0, 0, 0);
+        return id;
+    }
+
+    @Override
+    public void reuse(int id, int lane, double maxSpeedMPH, double maxAccelMPHSquared, double desiredDistance, double kP, double kD, double lengthFt) {
+        this.lane[id] = lane;
+        this.maxSpeed[id] = maxSpeedMPH;
+        this.maxAccel[id] = maxAccelMPHSquared;
+        this.desiredGap[id] = desiredDistance;
+        this.kP[id] = kP;
+        this.kD[id] = kD;
+        this.length[id] = lengthFt;
+        this.position[id] = 0;
+        this.speed[id] = maxSpeedMPH / 2;
+    }
+
+    private void grow() {
+        int capacity = lane.length * 2;
+        lane = Arrays.copyOf(lane, capacity);
+        position = Arrays.copyOf(position, capacity);
+        speed = Arrays.copyOf(speed, capacity);
+        maxSpeed = Arrays.copyOf(maxSpeed, capacity);
+        maxAccel = Arrays.copyOf(maxAccel, capacity);
+        desiredGap = Arrays.copyOf(desiredGap, capacity);
+        kP = Arrays.copyOf(kP, capacity);
+        kD = Arrays.copyOf(kD, capacity);
+        length = Arrays.copyOf(length, capacity);
+    }
+
+    @Override
+    public void writeTo(WritableByteChannel out, ByteBuffer scratch) throws IOException {
+        Checkpoint.writeInts(out, scratch, lane, size);
+        Checkpoint.writeDoubles(out, scratch, position, size);
+        Checkpoint.writeDoubles(out, scratch, speed, size);
+        Checkpoint.writeDoubles(out, scratch, maxSpeed, size);
+        Checkpoint.writeDoubles(out, scratch, maxAccel, size);
+        Checkpoint.writeDoubles(out, scratch, desiredGap, size);
+        Checkpoint.writeDoubles(out, scratch, kP, size);
+        Checkpoint.writeDoubles(out, scratch, kD, size);
+        Checkpoint.writeDoubles(out, scratch, length, size);
+    }
+
+    /** Reads {@code count} vehicles written by {@link VehicleStore#writeTo}. */
+    public static HeapVehicleStore readFrom(ReadableByteChannel in, ByteBuffer scratch, int count) throws IOException {
+        HeapVehicleStore store = new HeapVehicleStore(count);
+        Checkpoint.readInts(in, scratch, store.lane, count);
+        Checkpoint.readDoubles(in, scratch, store.position, count);
+        Checkpoint.readDoubles(in, scratch, store.speed, count);
+        Checkpoint.readDoubles(in, scratch, store.maxSpeed, count);
+        Checkpoint.readDoubles(in, scratch, store.maxAccel, count);
+        Checkpoint.readDoubles(in, scratch, store.desiredGap, count);
+        Checkpoint.readDoubles(in, scratch, store.kP, count);
+        Checkpoint.readDoubles(in, scratch, store.kD, count);
+        Checkpoint.readDoubles(in, scratch, store.length, count);
+        store.size = count;
+        return store;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int lane(int id) {
+        return lane[id];
+    }
+
+    @Override
+    public void setLane(int id, int value) {
+        lane[id] = value;
+    }
+
+    @Override
+    public double position(int id) {
+        return position[id];
+    }
+
+    @Override
+    public void setPosition(int id, double value) {
+        position[id] = value;
+    }
+
+    @Override
+    public double speed(int id) {
+        return speed[id];
+    }
+
+    @Override
+    public void setSpeed(int id, double value) {
+        speed[id] = value;
+    }
+
+    @Override
+    public void setMotion(int id, double speedMPH, double position) {
+        this.speed[id] = speedMPH;
+        this.position[id] = position;
+    }
+
+    @Override
+    public double maxSpeed(int id) {
+        return maxSpeed[id];
+    }
+
+    @Override
+    public double maxAccel(int id) {
+        return maxAccel[id];
+    }
+
+    @Override
+    public double desiredGap(int id) {
+        return desiredGap[id];
+    }
+
+    @Override
+    public double kP(int id) {
+        return kP[id];
+    }
+
+    @Override
+    public double kD(int id) {
+        return kD[id];
+    }
+
+    @Override
+    public double length(int id) {
+        return length[id];
+    }
+}
@@ -0,0 +1,76 @@
+package trafficsim;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size histogram of non-negative longs (nanoseconds, here) with one
+ * bucket per power of two, so recording is a couple of instructions and never
+ * allocates. Percentiles are reported as the upper edge of their bucket, so
+ * they are accurate to within a factor of two. Not thread-safe: record from
+ * one thread at a time.
+ */
+public class Histogram {
+    private final long[] buckets = new long[64];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        buckets[63 - Long.numberOfLeadingZeros(value | 1)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long sum() {
+        return sum;
+    }
+
+    public long min() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /** Upper bound of the bucket holding the given percentile (0-100). */
+    public long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        long seen = 0;
+        for (int b = 0; b < buckets.length; b++) {
+            seen += buckets[b];
+            if (seen >= Math.max(1, rank)) {
+                return b == 63 ? max : Math.min(max, (1L << (b + 1)) - 1);
+            }
+        }
+        return max;
+    }
+
+    public void reset() {
+        Arrays.fill(buckets, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.0f p50=%d p99=%d max=%d", count, mean(), percentile(50), percentile(99), max);
+    }
+}
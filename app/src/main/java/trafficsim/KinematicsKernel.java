@@ -0,0 +1,141 @@
+package trafficsim;
+
+import java.util.Arrays;
+
+/**
+ * The branch-free part of {@link SimEngine#advance} for a batch of cars whose
+ * leaders are already known: PD target speed, clamping to [0, max speed], the
+ * acceleration limit and the distance moved. Inputs and outputs are parallel
+ * arrays indexed by position in the batch.
+ *
+ * {@link #compute} uses {@code jdk.incubator.vector} when the module is
+ * present (run with {@code --add-modules jdk.incubator.vector}) and a scalar
+ * loop otherwise. Both do the same IEEE operations in the same order (no fused
+ * multiply-add), so they give the same bits as each other and as
+ * {@code advance}.
+ */
+public class KinematicsKernel {
+    private static final VectorPass VECTOR_PASS = loadVectorPass();
+
+    /**
+     * The vectorized loop, compiled separately with the incubator module so
+     * the rest of the build doesn't need it: handles a prefix of [0, n) and
+     * returns its length.
+     */
+    interface VectorPass {
+        int compute(KinematicsKernel kernel, int n, double dt);
+    }
+
+    final double[] speed;
+    final double[] maxSpeed;
+    final double[] maxAccel;
+    final double[] desiredGap;
+    final double[] kP;
+    final double[] kD;
+    /** Bumper-to-bumper gap to the leader; ignored without one. */
+    final double[] gap;
+    final double[] leaderSpeed;
+    final boolean[] hasLeader;
+
+    final double[] newSpeed;
+    final double[] movement;
+
+    private final boolean vector;
+
+    /** A kernel for batches of up to {@code capacity} cars, vectorized if asked and available. */
+    public KinematicsKernel(int capacity, boolean vector) {
+        this.speed = new double[capacity];
+        this.maxSpeed = new double[capacity];
+        this.maxAccel = new double[capacity];
+        this.desiredGap = new double[capacity];
+        this.kP = new double[capacity];
+        this.kD = new double[capacity];
+        this.gap = new double[capacity];
+        this.leaderSpeed = new double[capacity];
+        this.hasLeader = new boolean[capacity];
+        this.newSpeed = new double[capacity];
+        this.movement = new double[capacity];
+        this.vector = vector && VECTOR_PASS != null;
+    }
+
+    public static boolean vectorAvailable() {
+        return VECTOR_PASS != null;
+    }
+
+    /** {@code VectorKinematics} if the module is present and the class is on the classpath, else null. */
+    private static VectorPass loadVectorPass() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+        try {
+            return (VectorPass) Class.forName("trafficsim.VectorKinematics").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    public boolean isVectorized() {
+        return vector;
+    }
+
+    public int capacity() {
+        return speed.length;
+    }
+
+    /** Loads car {@code id} of {@code store}, following {@code leader} (or none if -1), into slot {@code i}. */
+    public void load(int i, VehicleStore store, int id, int leader) {
+        maxSpeed[i] = store.maxSpeed(id);
+        maxAccel[i] = store.maxAccel(id);
+        desiredGap[i] = store.desiredGap(id);
+        kP[i] = store.kP(id);
+        kD[i] = store.kD(id);
+        loadMotion(i, store, id, leader);
+    }
+
+    /** Fills slots [from, to) with the parameters of car {@code id}, for a run of cars of one type. */
+    void loadParameters(int from, int to, VehicleStore store, int id) {
+        Arrays.fill(maxSpeed, from, to, store.maxSpeed(id));
+        Arrays.fill(maxAccel, from, to, store.maxAccel(id));
+        Arrays.fill(desiredGap, from, to, store.desiredGap(id));
+        Arrays.fill(kP, from, to, store.kP(id));
+        Arrays.fill(kD, from, to, store.kD(id));
+    }
+
+    /** Loads all but the parameters of car {@code id}, as {@link #load} does. */
+    void loadMotion(int i, VehicleStore store, int id, int leader) {
+        speed[i] = store.speed(id);
+        hasLeader[i] = leader >= 0;
+        if (leader >= 0) {
+            gap[i] = (store.position(leader) - (store.length(leader) / 2)) - (store.position(id) + (store.length(id) / 2));
+            leaderSpeed[i] = store.speed(leader);
+        }
+    }
+
+    /** Fills {@code newSpeed} and {@code movement} for slots [0, n). */
+    public void compute(int n, double dt) {
+        int done = vector ? VECTOR_PASS.compute(this, n, dt) : 0;
+        computeScalar(done, n, dt);
+    }
+
+    void computeScalar(int from, int to, double dt) {
+        for (int i = from; i < to; i++) {
+            double s = speed[i];
+            double targetSpeed = maxSpeed[i];
+            if (hasLeader[i]) {
+                double error = gap[i] - desiredGap[i];
+                double derivative = leaderSpeed[i] - s;
+                double speedAdjustment = kP[i] * error + kD[i] * derivative;
+                targetSpeed = s + speedAdjustment;
+                targetSpeed = Math.min(maxSpeed[i], Math.max(0, targetSpeed));
+            }
+            double speedDiff = targetSpeed - s;
+            double maxDelta = maxAccel[i] * dt;
+            if (Math.abs(speedDiff) > maxDelta) {
+                speedDiff = Math.copySign(maxDelta, speedDiff);
+            }
+            s += speedDiff;
+            newSpeed[i] = s;
+            movement[i] = s * 5280 / 3600 * dt;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package trafficsim;
+
+import java.util.Arrays;
+
+/**
+ * Per-lane ordering of cars by position, kept sorted as cars move so neighbor
+ * lookups don't have to scan every car on the road.
+ *
+ * Each lane holds car ids sorted by (distanceFromStart, id) ascending. A car's
+ * slot in its lane is tracked, so the leader/follower of an indexed car is O(1)
+ * and lookups from an arbitrary position are a binary search.
+ *
+ * Cars at the same position are ordered by id, or by a rank per id set with
+ * {@link #orderTiesBy}, which is what the engine's tie-breaks follow too.
+ */
+public final class LaneIndex {
+    private final VehicleStore store;
+    private final int[][] order;
+    private final int[] size;
+    private int[] laneOf;
+    private int[] slot;
+    private double maxLength;
+    private int[] rank;
+    private int[] sortScratch = new int[8];
+
+    public LaneIndex(VehicleStore store, int lanes) {
+        this.store = store;
+        this.order = new int[lanes][];
+        this.size = new int[lanes];
+        this.laneOf = new int[store.size()];
+        this.slot = new int[store.size()];
+        rebuild();
+    }
+
+    public void rebuild() {
+        maxLength = 0;
+        for (int id = 0; id < store.size(); id++) {
+            maxLength = Math.max(maxLength, store.length(id));
+        }
+        // Room for twice each lane's cars (at most all of them); insert doubles a lane that still fills up
+        Arrays.fill(size, 0);
+        for (int id = 0; id < store.size(); id++) {
+            if (store.lane(id) > 0) {
+                size[store.lane(id) - 1]++;
+            }
+        }
+        int largest = 0;
+        for (int l = 0; l < order.length; l++) {
+            int room = Math.max(8, Math.min(store.size(), 2 * size[l]));
+            if (order[l] == null || order[l].length < room) {
+                order[l] = new int[room];
+            }
+            largest = Math.max(largest, size[l]);
+            size[l] = 0;
+        }
+        if (laneOf.length < store.size()) {
+            laneOf = Arrays.copyOf(laneOf, store.size());
+            slot = Arrays.copyOf(slot, store.size());
+        }
+        // Bucket by lane in id order, then sort each lane by position and tie order
+        for (int id = 0; id < store.size(); id++) {
+            int lane = store.lane(id);
+            laneOf[id] = lane;
+            if (lane > 0) {
+                order[lane - 1][size[lane - 1]++] = id;
+            }
+        }
+        if (sortScratch.length < largest) {
+            sortScratch = new int[largest];
+        }
+        for (int l = 0; l < order.length; l++) {
+            sortByPosition(order[l], sortScratch, size[l]);
+            for (int s = 0; s < size[l]; s++) {
+                slot[order[l][s]] = s;
+            }
+        }
+    }
+
+    // Bottom-up merge sort; already sorted runs cost one comparison per merge
+    private void sortByPosition(int[] ids, int[] scratch, int n) {
+        int[] from = ids;
+        int[] to = scratch;
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                if (mid < hi && !before(from[mid], from[mid - 1])) {
+                    System.arraycopy(from, lo, to, lo, hi - lo);
+                    continue;
+                }
+                int a = lo;
+                int b = mid;
+                for (int k = lo; k < hi; k++) {
+                    to[k] = b >= hi || (a < mid && !before(from[b], from[a])) ? from[a++] : from[b++];
+                }
+            }
+            int[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if (from != ids) {
+            System.arraycopy(from, 0, ids, 0, n);
+        }
+    }
+
+    /** Files a vehicle that has just come onto the road (a new or reused id). */
+    public void enter(int id) {
+        if (id >= laneOf.length) {
+            int capacity = Math.max(id + 1, laneOf.length * 2);
+            laneOf = Arrays.copyOf(laneOf, capacity);
+            slot = Arrays.copyOf(slot, capacity);
+        }
+        maxLength = Math.max(maxLength, store.length(id));
+        insert(id, store.lane(id));
+    }
+
+    /** Drops a vehicle that has left the road. */
+    public void leave(int id) {
+        remove(id);
+        laneOf[id] = 0;
+    }
+
+    public int size(int lane) {
+        return size[lane - 1];
+    }
+
+    public int carAt(int lane, int slot) {
+        return order[lane - 1][slot];
+    }
+
+    public int slotOf(int id) {
+        return slot[id];
+    }
+
+    /** Longest car on the road, used to widen position windows into overlap windows. */
+    public double maxLength() {
+        return maxLength;
+    }
+
+    /** First slot in the lane whose car is strictly ahead of {@code pos}. */
+    public int upperBound(int lane, double pos) {
+        int[] ids = order[lane - 1];
+        int lo = 0;
+        int hi = size[lane - 1];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (store.position(ids[mid]) > pos) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /** First slot in the lane whose car is at or ahead of {@code pos}. */
+    public int lowerBound(int lane, double pos) {
+        int[] ids = order[lane - 1];
+        int lo = 0;
+        int hi = size[lane - 1];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (store.position(ids[mid]) >= pos) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /** Closest car strictly ahead of {@code pos} in the lane, or -1. Ties go to the first in tie order. */
+    public int leader(int lane, double pos) {
+        int s = upperBound(lane, pos);
+        return s < size[lane - 1] ? order[lane - 1][s] : -1;
+    }
+
+    /** Same as {@code leader(lane, position)} for a car already in the index, without the search. */
+    public int leaderOf(int id) {
+        int[] ids = order[laneOf[id] - 1];
+        int n = size[laneOf[id] - 1];
+        double pos = store.position(id);
+        int s = slot[id] + 1;
+        while (s < n && store.position(ids[s]) <= pos) {
+            s++;
+        }
+        return s < n ? ids[s] : -1;
+    }
+
+    /** Closest car strictly behind {@code pos} in the lane, or -1. Ties go to the last in tie order. */
+    public int follower(int lane, double pos) {
+        int s = lowerBound(lane, pos) - 1;
+        return s >= 0 ? order[lane - 1][s] : -1;
+    }
+
+    /**
+     * Copies the lane front to back into {@code out}: descending position, and
+     * ascending id among cars at the same position. Returns the number copied.
+     */
+    public int copyFrontToBack(int lane, int[] out) {
+        int[] ids = order[lane - 1];
+        int n = size[lane - 1];
+        int i = n - 1;
+        int k = 0;
+        while (i >= 0) {
+            int start = i;
+            double pos = store.position(ids[i]);
+            while (start > 0 && store.position(ids[start - 1]) == pos) {
+                start--;
+            }
+            for (int j = start; j <= i; j++) {
+                out[k++] = ids[j];
+            }
+            i = start - 1;
+        }
+        return n;
+    }
+
+    /** Re-files a car after its lane and/or position changed. */
+    public void update(int id) {
+        int lane = store.lane(id);
+        if (lane != laneOf[id]) {
+            remove(id);
+            insert(id, lane);
+            return;
+        }
+        int[] ids = order[lane - 1];
+        int n = size[lane - 1];
+        int s = slot[id];
+        while (s + 1 < n && before(ids[s + 1], id)) {
+            ids[s] = ids[s + 1];
+            slot[ids[s]] = s;
+            s++;
+        }
+        while (s > 0 && before(id, ids[s - 1])) {
+            ids[s] = ids[s - 1];
+            slot[ids[s]] = s;
+            s--;
+        }
+        ids[s] = id;
+        slot[id] = s;
+    }
+
+    /**
+     * Restores the ordering of one lane after many of its cars moved at once.
+     * Positions only shift a little per tick, so this is an insertion sort over
+     * an almost-sorted lane. Lanes can be re-sorted concurrently with each other.
+     */
+    public void resortLane(int lane) {
+        int[] ids = order[lane - 1];
+        int n = size[lane - 1];
+        for (int i = 1; i < n; i++) {
+            int id = ids[i];
+            int j = i;
+            while (j > 0 && before(id, ids[j - 1])) {
+                ids[j] = ids[j - 1];
+                j--;
+            }
+            ids[j] = id;
+        }
+        for (int i = 0; i < n; i++) {
+            slot[ids[i]] = i;
+        }
+    }
+
+    /**
+     * Breaks ties by {@code rank[id]} instead of id from now on, or by id again
+     * with null. A shard worker ranks its local ids by the global ones so ties
+     * go as in one process. The array is read, not copied; pass it again after
+     * reallocating it.
+     */
+    void orderTiesBy(int[] rank) {
+        this.rank = rank;
+    }
+
+    /** Whether {@code a} goes first of two vehicles at the same position. */
+    boolean precedes(int a, int b) {
+        return rank == null ? a < b : rank[a] < rank[b];
+    }
+
+    private boolean before(int a, int b) {
+        double pa = store.position(a);
+        double pb = store.position(b);
+        return pa < pb || (pa == pb && precedes(a, b));
+    }
+
+    private void insert(int id, int lane) {
+        int l = lane - 1;
+        if (size[l] == order[l].length) {
+            order[l] = Arrays.copyOf(order[l], order[l].length * 2);
+        }
+        int[] ids = order[l];
+        int lo = 0;
+        int hi = size[l];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (before(ids[mid], id)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        System.arraycopy(ids, lo, ids, lo + 1, size[l] - lo);
+        ids[lo] = id;
+        size[l]++;
+        for (int s = lo; s < size[l]; s++) {
+            slot[ids[s]] = s;
+        }
+        laneOf[id] = lane;
+    }
+
+    private void remove(int id) {
+        int l = laneOf[id] - 1;
+        int[] ids = order[l];
+        int s = slot[id];
+        System.arraycopy(ids, s + 1, ids, s, size[l] - s - 1);
+        size[l]--;
+        for (int i = s; i < size[l]; i++) {
+            slot[ids[i]] = i;
+        }
+    }
+}
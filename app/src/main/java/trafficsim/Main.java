@@ -3,13 +3,18 @@
  */
 package trafficsim;
 
+import java.io.IOException;
 import java.util.Arrays;
 
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("serve")) {
+            SimulationService.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         System.out.print("\033[H\033[2J");  
         System.out.flush();  
-        Traffic t = Traffic.createSim(Constants.lanes, Constants.cars, Constants.dt, Constants.simTime, true);
+        Traffic t = Traffic.createSim(SimConfig.defaults().withVisualize(true));
         t.startSim();
         System.out.println("Average Distance (ft): " + t.getAverageDistance());
         System.out.println("Max Distance (ft): " + t.getMaxDistance());
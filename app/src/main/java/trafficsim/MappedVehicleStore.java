@@ -0,0 +1,364 @@
+package trafficsim;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A {@link VehicleStore} whose columns live in a memory-mapped file instead
+ * of on the heap, for populations larger than {@code -Xmx} or that should not
+ * be traced by the collector. The step loop reads and writes the mapped
+ * memory in place through the usual accessors; the operating system pages it
+ * to the file as it sees fit.
+ *
+ * The file is little-endian: a {@value #HEADER_BYTES}-byte header (magic,
+ * version, capacity, size, sequence and tick), the lane column of
+ * {@code capacity} ints padded to 8 bytes, then the eight double columns of
+ * {@code capacity} each in {@link VehicleStore}'s order. Every column is its
+ * own mapping, so the capacity is limited to 2 GB of doubles, about 268
+ * million vehicles. Growing doubles the capacity, moving the columns up the
+ * file in place.
+ *
+ * Another process can follow a run with {@link #openReadOnly}. The sequence
+ * in the header is odd while a tick (or a grow) is changing the columns and
+ * even in between, so a reader that reads the sequence, calls
+ * {@link #refresh()}, reads what it needs and sees the same even sequence
+ * again has a consistent view of the state after {@link #tick()}.
+ *
+ * Only the vehicles live in the file; the lane index and the engine's other
+ * per-vehicle scratch stay on the heap.
+ */
+public final class MappedVehicleStore extends VehicleStore {
+    static final int MAGIC = 0x31535654; // "TVS1"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 64;
+    private static final int DOUBLE_COLUMNS = 8;
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE / Double.BYTES;
+    private static final int CAPACITY_AT = 8;
+    private static final int SIZE_AT = 12;
+    private static final int SEQUENCE_AT = 16;
+    private static final int TICK_AT = 24;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final Path file;
+    private final boolean readOnly;
+    private ByteBuffer header;
+    private int capacity;
+    private int size;
+    private boolean writing;
+
+    private ByteBuffer laneBytes;
+    private final ByteBuffer[] columnBytes = new ByteBuffer[DOUBLE_COLUMNS];
+    private IntBuffer lane;
+    private DoubleBuffer position;
+    private DoubleBuffer speed;
+    private DoubleBuffer maxSpeed;
+    private DoubleBuffer maxAccel;
+    private DoubleBuffer desiredGap;
+    private DoubleBuffer kP;
+    private DoubleBuffer kD;
+    private DoubleBuffer length;
+
+    private MappedVehicleStore(Path file, boolean readOnly) {
+        this.file = file;
+        this.readOnly = readOnly;
+    }
+
+    /** Creates an empty store in {@code file}, replacing whatever it held, with room for {@code capacity} vehicles. */
+    public static MappedVehicleStore create(Path file, int capacity) throws IOException {
+        capacity = Math.max(1, capacity);
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("A mapped store holds at most " + MAX_CAPACITY + " vehicles, asked for " + capacity);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer start = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            start.putInt(MAGIC).putInt(VERSION).putInt(capacity).putInt(0).flip();
+            while (start.hasRemaining()) {
+                channel.write(start, start.position());
+            }
+        }
+        MappedVehicleStore store = new MappedVehicleStore(file, false);
+        store.map(capacity);
+        return store;
+    }
+
+    /**
+     * Opens the store another process is running on, to read it while the run
+     * goes on. Setters throw {@link java.nio.ReadOnlyBufferException}.
+     */
+    public static MappedVehicleStore openReadOnly(Path file) throws IOException {
+        MappedVehicleStore store = new MappedVehicleStore(file, true);
+        store.refresh();
+        return store;
+    }
+
+    /**
+     * Re-reads the size from the header, remapping the columns if the writer
+     * has grown them since. Only for a store opened with {@link #openReadOnly}.
+     */
+    public void refresh() throws IOException {
+        if (!readOnly) {
+            throw new IllegalStateException("Only a read-only view follows another process");
+        }
+        if (header == null) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a vehicle store");
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("Unsupported vehicle store version " + header.getInt(4));
+            }
+        }
+        int written = header.getInt(CAPACITY_AT);
+        if (written != capacity) {
+            map(written);
+        }
+        size = header.getInt(SIZE_AT);
+    }
+
+    /** Even between ticks, odd while the columns are being changed; see the class comment. */
+    public long sequence() {
+        return (long) LONGS.getAcquire(header, SEQUENCE_AT);
+    }
+
+    /** The last tick finished on this store, as {@link Traffic#step} counts them. */
+    public long tick() {
+        return header.getLong(TICK_AT);
+    }
+
+    public Path file() {
+        return file;
+    }
+
+    private static long doublesAt(int capacity, int column) {
+        return HEADER_BYTES + ((long) capacity * Integer.BYTES + 7 & ~7L) + (long) column * capacity * Double.BYTES;
+    }
+
+    private void map(int capacity) throws IOException {
+        FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+        try (FileChannel channel = readOnly ? FileChannel.open(file, StandardOpenOption.READ)
+                : FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (header == null) {
+                header = channel.map(mode, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            laneBytes = channel.map(mode, HEADER_BYTES, (long) capacity * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (int c = 0; c < DOUBLE_COLUMNS; c++) {
+                columnBytes[c] = channel.map(mode, doublesAt(capacity, c), (long) capacity * Double.BYTES)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+        lane = laneBytes.asIntBuffer();
+        position = columnBytes[0].asDoubleBuffer();
+        speed = columnBytes[1].asDoubleBuffer();
+        maxSpeed = columnBytes[2].asDoubleBuffer();
+        maxAccel = columnBytes[3].asDoubleBuffer();
+        desiredGap = columnBytes[4].asDoubleBuffer();
+        kP = columnBytes[5].asDoubleBuffer();
+        kD = columnBytes[6].asDoubleBuffer();
+        length = columnBytes[7].asDoubleBuffer();
+        this.capacity = capacity;
+    }
+
+    /**
+     * Doubles the capacity. The double columns move up the file, the last one
+     * first and each from its end down, so no column overwrites one not yet
+     * moved; the lane column stays where it is.
+     */
+    private void grow() {
+        if (capacity == MAX_CAPACITY) {
+            throw new IllegalStateException("A mapped store holds at most " + MAX_CAPACITY + " vehicles");
+        }
+        int grown = (int) Math.min(MAX_CAPACITY, (long) capacity * 2);
+        boolean outside = !writing;
+        if (outside) {
+            tickStarting();
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer chunk = ByteBuffer.allocateDirect(1 << 20);
+            for (int c = DOUBLE_COLUMNS - 1; c >= 0; c--) {
+                moveUp(channel, doublesAt(capacity, c), doublesAt(grown, c), (long) size * Double.BYTES, chunk);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not grow " + file, e);
+        }
+        try {
+            map(grown);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not map " + file, e);
+        }
+        header.putInt(CAPACITY_AT, grown);
+        if (outside) {
+            writing = false;
+            LONGS.setRelease(header, SEQUENCE_AT, sequence() + 1);
+        }
+    }
+
+    private static void moveUp(FileChannel channel, long from, long to, long bytes, ByteBuffer chunk) throws IOException {
+        long left = bytes;
+        while (left > 0) {
+            int n = (int) Math.min(chunk.capacity(), left);
+            left -= n;
+            chunk.clear().limit(n);
+            while (chunk.hasRemaining()) {
+                channel.read(chunk, from + left + chunk.position());
+            }
+            chunk.flip();
+            while (chunk.hasRemaining()) {
+                channel.write(chunk, to + left + chunk.position());
+            }
+        }
+    }
+
+    @Override
+    void tickStarting() {
+        writing = true;
+        LONGS.setVolatile(header, SEQUENCE_AT, sequence() + 1);
+    }
+
+    @Override
+    void tickFinished(long tick) {
+        header.putLong(TICK_AT, tick);
+        writing = false;
+        LONGS.setRelease(header, SEQUENCE_AT, sequence() + 1);
+    }
+
+    @Override
+    public int add(int lane, double maxSpeedMPH, double maxAccelMPHSquared, double desiredDistance, double kP, double kD, double lengthFt) {
+        if (size == capacity) {
+            grow();
+        }
+        int id = size++;
+        reuse(id, lane, maxSpeedMPH, maxAccelMPHSquared, desiredDistance, kP, kD, lengthFt);
+        header.putInt(SIZE_AT, size);
+        return id;
+    }
+
+    @Override
+    public int allocate() {
+        if (size == capacity) {
+            grow();
+        }
+        int id = size++;
+        reuse(id, 0, 0, 0, 0, 0, 0, 0);
+        header.putInt(SIZE_AT, size);
+        return id;
+    }
+
+    @Override
+    public void reuse(int id, int lane, double maxSpeedMPH, double maxAccelMPHSquared, double desiredDistance, double kP, double kD, double lengthFt) {
+        this.lane.put(id, lane);
+        this.maxSpeed.put(id, maxSpeedMPH);
+        this.maxAccel.put(id, maxAccelMPHSquared);
+        this.desiredGap.put(id, desiredDistance);
+        this.kP.put(id, kP);
+        this.kD.put(id, kD);
+        this.length.put(id, lengthFt);
+        this.position.put(id, 0);
+        this.speed.put(id, maxSpeedMPH / 2);
+    }
+
+    /** Writes the columns in {@link VehicleStore#writeTo}'s format, straight from the mapping. */
+    @Override
+    public void writeTo(WritableByteChannel out, ByteBuffer scratch) throws IOException {
+        write(out, laneBytes, (long) size * Integer.BYTES);
+        for (ByteBuffer column : columnBytes) {
+            write(out, column, (long) size * Double.BYTES);
+        }
+    }
+
+    private static void write(WritableByteChannel out, ByteBuffer column, long bytes) throws IOException {
+        ByteBuffer view = column.duplicate();
+        view.clear().limit((int) bytes);
+        while (view.hasRemaining()) {
+            out.write(view);
+        }
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        header.putInt(SIZE_AT, 0);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int lane(int id) {
+        return lane.get(id);
+    }
+
+    @Override
+    public void setLane(int id, int value) {
+        lane.put(id, value);
+    }
+
+    @Override
+    public double position(int id) {
+        return position.get(id);
+    }
+
+    @Override
+    public void setPosition(int id, double value) {
+        position.put(id, value);
+    }
+
+    @Override
+    public double speed(int id) {
+        return speed.get(id);
+    }
+
+    @Override
+    public void setSpeed(int id, double value) {
+        speed.put(id, value);
+    }
+
+    @Override
+    public void setMotion(int id, double speedMPH, double position) {
+        this.speed.put(id, speedMPH);
+        this.position.put(id, position);
+    }
+
+    @Override
+    public double maxSpeed(int id) {
+        return maxSpeed.get(id);
+    }
+
+    @Override
+    public double maxAccel(int id) {
+        return maxAccel.get(id);
+    }
+
+    @Override
+    public double desiredGap(int id) {
+        return desiredGap.get(id);
+    }
+
+    @Override
+    public double kP(int id) {
+        return kP.get(id);
+    }
+
+    @Override
+    public double kD(int id) {
+        return kD.get(id);
+    }
+
+    @Override
+    public double length(int id) {
+        return length.get(id);
+    }
+}
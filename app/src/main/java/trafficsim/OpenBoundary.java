@@ -0,0 +1,237 @@
+package trafficsim;
+
+import java.util.Arrays;
+
+/**
+ * Turns a simulation's unbounded road into a finite segment: vehicles arrive
+ * at position 0 by an {@link ArrivalProcess} and leave once they are past
+ * {@code roadLengthFt}. A vehicle that leaves goes to lane 0 and its id is
+ * reused by a later arrival, so the store only ever holds as many vehicles as
+ * were on the road at once, however long the run.
+ *
+ * Arrivals that find no lane with room at the entrance wait in a queue (a
+ * count, with only the vehicle at its head drawn) and enter in order as space
+ * opens. Attach with {@link Traffic#useOpenBoundary}; vehicle parameters are
+ * drawn from the simulation's random source like the initial cars.
+ * In a {@link RoadNetwork} the boundary also takes vehicles handed over from
+ * upstream segments, which enter ahead of its own arrivals and keep their
+ * parameters, speed, (where it exists) lane and how far past the junction
+ * they have got, and passes the vehicles that leave to the network instead of
+ * dropping them.
+ * {@link Checkpoint} refuses to save an open road, whose queue, arrival
+ * process and hand-offs it would miss.
+ */
+public class OpenBoundary {
+    private final Traffic traffic;
+    private final SimEngine engine;
+    private final VehicleStore store;
+    private final LaneIndex index;
+    private final double roadLengthFt;
+    private final ArrivalProcess arrivals;
+
+    private int[] pool = new int[16];
+    private int pooled;
+    private final VehicleStore incoming;
+    private int incomingHead;
+    private VehicleStore outgoing;
+    private double nextArrival;
+    private int queued;
+    private int head = -1;
+    private long arrived;
+    private long entered;
+    private long received;
+    private long exited;
+    private int peakOnRoad;
+
+    OpenBoundary(Traffic traffic, double roadLengthFt, ArrivalProcess arrivals) {
+        if (!(roadLengthFt > 0)) {
+            throw new IllegalArgumentException("roadLengthFt must be positive, was " + roadLengthFt);
+        }
+        this.traffic = traffic;
+        this.engine = traffic.engine();
+        this.store = traffic.store();
+        this.index = engine.laneIndex();
+        this.roadLengthFt = roadLengthFt;
+        this.arrivals = arrivals;
+        // A typed road takes only typed vehicles, and they keep their type on the way in
+        this.incoming = store instanceof TypedVehicleStore ? new TypedVehicleStore(16) : new HeapVehicleStore(16);
+        this.nextArrival = arrivals == null ? Double.POSITIVE_INFINITY : arrivals.nextArrival(traffic.random());
+        for (int id = 0; id < store.size(); id++) {
+            if (store.lane(id) == 0) {
+                release(id);
+            }
+        }
+    }
+
+    /**
+     * Queues a copy of vehicle {@code id} of {@code from} to enter this road;
+     * see {@link RoadNetwork}. A road with a {@link TypedVehicleStore} only
+     * takes vehicles from another.
+     */
+    void offer(VehicleStore from, int id) {
+        incoming.addCopy(from, id);
+        received++;
+    }
+
+    /**
+     * Has vehicles that leave copied into {@code buffer} (lane and speed
+     * included) rather than just dropped, with their positions measured from
+     * the end of this road.
+     */
+    void forwardExitsTo(VehicleStore buffer) {
+        this.outgoing = buffer;
+    }
+
+    /** Queues everything that has arrived by {@code time} and lets in as much of the queue as fits. */
+    void admit(double time) {
+        while (incomingHead < incoming.size()) {
+            int lanes = engine.getNumLanes();
+            int preferred = Math.min(incoming.lane(incomingHead), lanes) - 1;
+            // A handed-off vehicle keeps how far past the junction it got
+            double position = incoming.position(incomingHead);
+            int lane = entryLane(preferred, position + incoming.length(incomingHead) / 2 + incoming.desiredGap(incomingHead) + 30);
+            if (lane == 0) {
+                return;
+            }
+            int id = pooled > 0 ? pool[--pooled] : store.allocate();
+            if (incoming instanceof TypedVehicleStore typed) {
+                store.reuse(id, lane, typed.type(typed.typeOf(incomingHead)));
+            } else {
+                store.reuse(id, lane, incoming.maxSpeed(incomingHead), incoming.maxAccel(incomingHead),
+                        incoming.desiredGap(incomingHead), incoming.kP(incomingHead), incoming.kD(incomingHead),
+                        incoming.length(incomingHead));
+            }
+            store.setSpeed(id, incoming.speed(incomingHead));
+            enter(id, lane, position);
+            incomingHead++;
+        }
+        incoming.clear();
+        incomingHead = 0;
+
+        while (nextArrival <= time) {
+            queued++;
+            arrived++;
+            nextArrival = arrivals.nextArrival(traffic.random());
+        }
+        while (queued > 0) {
+            if (head < 0) {
+                head = draw();
+            }
+            int first = (int) (traffic.random().nextDouble() * engine.getNumLanes());
+            int lane = entryLane(first, store.length(head) + store.desiredGap(head) + 30);
+            if (lane == 0) {
+                break;
+            }
+            enter(head, lane, store.length(head) / 2);
+            head = -1;
+            queued--;
+        }
+    }
+
+    private void enter(int id, int lane, double position) {
+        store.setLane(id, lane);
+        store.setPosition(id, position);
+        engine.enter(id);
+        entered++;
+    }
+
+    /** Takes every vehicle that is wholly past the end of the segment off the road. */
+    void removeExited() {
+        for (int lane = 1; lane <= engine.getNumLanes(); lane++) {
+            while (index.size(lane) > 0) {
+                int id = index.carAt(lane, index.size(lane) - 1);
+                if (store.position(id) - store.length(id) / 2 < roadLengthFt) {
+                    break;
+                }
+                if (outgoing != null) {
+                    int copy = outgoing.addCopy(store, id);
+                    outgoing.setPosition(copy, store.position(id) - roadLengthFt);
+                }
+                engine.leave(id);
+                release(id);
+                exited++;
+            }
+        }
+        peakOnRoad = Math.max(peakOnRoad, onRoad());
+    }
+
+    /** A pooled id (or a new one) holding freshly drawn parameters, still off the road. */
+    private int draw() {
+        int id = pooled > 0 ? pool[--pooled] : -1;
+        return traffic.drawCar(id, 0);
+    }
+
+    /**
+     * The lane a vehicle can enter, trying lane {@code first + 1} first and then
+     * the ones after it, or 0 if every entrance is blocked. A lane is open when
+     * its rearmost vehicle's back is at least {@code needed} feet in, which is
+     * the spacing the initial cars get.
+     */
+    private int entryLane(int first, double needed) {
+        int lanes = engine.getNumLanes();
+        for (int k = 0; k < lanes; k++) {
+            int lane = (first + k) % lanes + 1;
+            if (index.size(lane) == 0) {
+                return lane;
+            }
+            int rearmost = index.carAt(lane, 0);
+            if (store.position(rearmost) - store.length(rearmost) / 2 >= needed) {
+                return lane;
+            }
+        }
+        return 0;
+    }
+
+    private void release(int id) {
+        if (pooled == pool.length) {
+            pool = Arrays.copyOf(pool, pool.length * 2);
+        }
+        pool[pooled++] = id;
+    }
+
+    public double roadLengthFt() {
+        return roadLengthFt;
+    }
+
+    /** Vehicles that have turned up at the entrance, whether or not they got in yet. */
+    public long arrived() {
+        return arrived;
+    }
+
+    /** Vehicles handed over from upstream segments of a {@link RoadNetwork}. */
+    public long received() {
+        return received;
+    }
+
+    /** Handed-over vehicles still waiting for room at the entrance. */
+    public int waitingHandoffs() {
+        return incoming.size() - incomingHead;
+    }
+
+    public long entered() {
+        return entered;
+    }
+
+    public long exited() {
+        return exited;
+    }
+
+    /** Arrivals waiting for room at the entrance. */
+    public int queued() {
+        return queued;
+    }
+
+    public int onRoad() {
+        return store.size() - pooled - (head >= 0 ? 1 : 0);
+    }
+
+    /** Most vehicles on the road at once so far. */
+    public int peakOnRoad() {
+        return peakOnRoad;
+    }
+
+    /** Vehicles in the store, on the road or pooled; bounded by the peak, not by how many have passed. */
+    public int capacity() {
+        return store.size();
+    }
+}
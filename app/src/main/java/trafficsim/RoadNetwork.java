@@ -0,0 +1,192 @@
+package trafficsim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Road segments joined at nodes. Each segment is its own {@link Traffic} on
+ * an {@link OpenBoundary} road, with its own lane count and lane drop
+ * ({@link SimConfig#rightLaneEnd()}, in the segment's own coordinates).
+ * {@link #connect} links one segment's exit to another's entrance: links out of
+ * the same segment split its traffic by weight (an off-ramp or fork), and
+ * links into the same segment merge (an on-ramp or a lane gain). Vehicles
+ * leaving a segment with no links leave the network.
+ *
+ * Each tick every segment steps on its own, in parallel over the pool, and
+ * then, once all have finished, the vehicles that left each segment are handed
+ * to the segments downstream in segment order. Routing draws come from the
+ * network's seed, so results do not depend on the pool size.
+ */
+public class RoadNetwork {
+    private final SimRandom random;
+    private final ForkJoinPool pool;
+    private final List<Traffic> segments = new ArrayList<>();
+    private final List<VehicleStore> exits = new ArrayList<>();
+    private final List<int[]> linkTargets = new ArrayList<>();
+    private final List<double[]> linkWeights = new ArrayList<>();
+    private Segments stepAll;
+    private long tick;
+    private long completed;
+
+    /** {@code pool} may be null to step the segments on the calling thread. */
+    public RoadNetwork(long seed, ForkJoinPool pool) {
+        this.random = new SimRandom(seed);
+        this.pool = pool;
+    }
+
+    /**
+     * Adds a segment {@code lengthFt} long laid out by {@code config} (its
+     * {@code cars} start on the segment), fed by {@code arrivals} from outside
+     * the network as well as by its links, or only by its links if
+     * {@code arrivals} is null. Returns the segment's number.
+     *
+     * With a {@code fleet}, the segment's own vehicles and arrivals are drawn
+     * from it as in {@link Traffic#createSim(SimConfig, VehicleType...)}, and
+     * it only takes vehicles from other segments with a fleet, which keep
+     * their type. Vehicles handed on keep their parameters either way.
+     */
+    public int addSegment(SimConfig config, double lengthFt, ArrivalProcess arrivals, VehicleType... fleet) {
+        if (!segments.isEmpty() && config.dt() != segments.get(0).dt) {
+            throw new IllegalArgumentException("Every segment must use the same dt, expected "
+                + segments.get(0).dt + " but was " + config.dt());
+        }
+        SimConfig segmentConfig = config.withSeed(random.nextLong()).withVisualize(false);
+        Traffic segment = (fleet.length == 0 ? Traffic.createSim(segmentConfig) : Traffic.createSim(segmentConfig, fleet))
+            .useOpenBoundary(lengthFt, arrivals);
+        VehicleStore exit = fleet.length == 0 ? new HeapVehicleStore(16) : new TypedVehicleStore(16);
+        segment.getOpenBoundary().forwardExitsTo(exit);
+        segments.add(segment);
+        exits.add(exit);
+        linkTargets.add(new int[0]);
+        linkWeights.add(new double[0]);
+        stepAll = null;
+        return segments.size() - 1;
+    }
+
+    /**
+     * Sends a {@code weight} share of the traffic leaving {@code from} on to
+     * {@code to}. A segment with a fleet can only be fed from segments with
+     * one, since its vehicles must have a type.
+     */
+    public RoadNetwork connect(int from, int to, double weight) {
+        if (from < 0 || from >= segments.size() || to < 0 || to >= segments.size()) {
+            throw new IllegalArgumentException("No such segment: " + (from < 0 || from >= segments.size() ? from : to));
+        }
+        if (!(weight > 0)) {
+            throw new IllegalArgumentException("weight must be positive, was " + weight);
+        }
+        if (segments.get(to).store() instanceof TypedVehicleStore && !(segments.get(from).store() instanceof TypedVehicleStore)) {
+            throw new IllegalArgumentException("Segment " + to + " has a fleet and can't take vehicles from segment "
+                + from + ", which has none");
+        }
+        int[] targets = linkTargets.get(from);
+        double[] weights = linkWeights.get(from);
+        int[] newTargets = Arrays.copyOf(targets, targets.length + 1);
+        double[] newWeights = Arrays.copyOf(weights, weights.length + 1);
+        newTargets[targets.length] = to;
+        newWeights[weights.length] = weight + (weights.length > 0 ? weights[weights.length - 1] : 0);
+        linkTargets.set(from, newTargets);
+        linkWeights.set(from, newWeights);
+        return this;
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    public Traffic segment(int segment) {
+        return segments.get(segment);
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    /** Vehicles that have left the network through a segment with no links out. */
+    public long completed() {
+        return completed;
+    }
+
+    /** Vehicles currently on some segment of the network. */
+    public int onRoad() {
+        int sum = 0;
+        for (Traffic segment : segments) {
+            sum += segment.getOpenBoundary().onRoad();
+        }
+        return sum;
+    }
+
+    public void run(double seconds) {
+        if (segments.isEmpty()) {
+            return;
+        }
+        long steps = (long) (seconds / segments.get(0).dt);
+        for (long i = 0; i < steps; i++) {
+            step();
+        }
+    }
+
+    /** Steps every segment once, then hands leaving vehicles downstream. */
+    public void step() {
+        if (stepAll == null) {
+            stepAll = new Segments(0, segments.size());
+        }
+        if (pool == null) {
+            stepAll.compute();
+        } else {
+            stepAll.reinitialize();
+            pool.invoke(stepAll);
+        }
+        for (int s = 0; s < segments.size(); s++) {
+            handOff(s);
+        }
+        tick++;
+    }
+
+    private void handOff(int from) {
+        VehicleStore exit = exits.get(from);
+        int[] targets = linkTargets.get(from);
+        double[] weights = linkWeights.get(from);
+        for (int id = 0; id < exit.size(); id++) {
+            if (targets.length == 0) {
+                completed++;
+                continue;
+            }
+            int link = 0;
+            if (targets.length > 1) {
+                double pick = random.nextDouble() * weights[weights.length - 1];
+                while (weights[link] <= pick) {
+                    link++;
+                }
+            }
+            segments.get(targets[link]).getOpenBoundary().offer(exit, id);
+        }
+        exit.clear();
+    }
+
+    @SuppressWarnings("serial")
+    private class Segments extends RecursiveAction {
+        private final int from;
+        private final int to;
+
+        Segments(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (pool != null && to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Segments(from, mid), new Segments(mid, to));
+                return;
+            }
+            for (int s = from; s < to; s++) {
+                segments.get(s).step();
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package trafficsim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Scenario files: a starting population of vehicles (lane, position, speed
+ * and controller parameters each) that is streamed straight into a
+ * simulation's {@link VehicleStore}, without building {@link Car} objects or
+ * a list first, so loading millions of vehicles costs I/O rather than heap.
+ *
+ * Two formats hold the same columns, in this order:
+ * {@code lane, position, speed, maxSpeed, maxAccel, desiredGap, kP, kD, length}
+ * (feet, mph, and mph per second for the acceleration).
+ * <ul>
+ * <li>binary (little-endian): a header with the magic, version and vehicle
+ *     count, then one {@value #RECORD_BYTES}-byte record per vehicle, read
+ *     through one direct buffer;</li>
+ * <li>CSV for editing by hand: a header line naming the columns, then one
+ *     line per vehicle. Blank lines and lines starting with {@code #} are
+ *     skipped.</li>
+ * </ul>
+ * {@link #load} tells them apart by the magic. Write binary files with
+ * {@link #writer}, which streams too, or save a running simulation's
+ * vehicles with {@link #save}.
+ */
+public final class Scenario {
+    static final int MAGIC = 0x31435354; // "TSC1"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 4 + 4 + 4;
+    static final int RECORD_BYTES = 4 + 8 * 8;
+    static final String CSV_HEADER = "lane,position,speed,maxSpeed,maxAccel,desiredGap,kP,kD,length";
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private Scenario() {
+    }
+
+    /**
+     * Creates a simulation of the vehicles in {@code file} on the road
+     * described by {@code config}; its car count is replaced by the file's.
+     * Every vehicle's lane must exist on that road.
+     */
+    public static Traffic load(Path file, SimConfig config) throws IOException {
+        VehicleStore store;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            // A file too short to hold the magic is read as CSV
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            int n;
+            do {
+                n = in.read(magic);
+            } while (n >= 0 && magic.hasRemaining());
+            store = !magic.hasRemaining() && magic.getInt(0) == MAGIC ? readBinary(in.position(0), config) : null;
+        }
+        if (store == null) {
+            try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                store = readCsv(in, config);
+            }
+        }
+        return Traffic.restore(config.withCars(store.size()), store, new SimRandom(config.seed()), 0);
+    }
+
+    /** Like {@link #load(Path, SimConfig)}, reading the scenario from a stream, e.g. a request body. */
+    public static Traffic load(InputStream stream, SimConfig config) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(stream, BUFFER_BYTES);
+        in.mark(4);
+        byte[] magic = in.readNBytes(4);
+        in.reset();
+        VehicleStore store;
+        if (magic.length == 4 && ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt() == MAGIC) {
+            store = readBinary(Channels.newChannel(in), config);
+        } else {
+            store = readCsv(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), config);
+        }
+        return Traffic.restore(config.withCars(store.size()), store, new SimRandom(config.seed()), 0);
+    }
+
+    private static VehicleStore readBinary(ReadableByteChannel in, SimConfig config) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.limit(HEADER_BYTES);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                throw new EOFException("Scenario header ends early");
+            }
+        }
+        buffer.flip();
+        buffer.getInt();
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported scenario version " + version);
+        }
+        int count = buffer.getInt();
+        if (count < 0) {
+            throw new IOException("Scenario has a negative vehicle count " + count);
+        }
+        // The count is only a claim until the records arrive, so the store grows with them
+        VehicleStore store = new HeapVehicleStore(Math.min(count, BUFFER_BYTES / RECORD_BYTES));
+        buffer.clear();
+        int read = 0;
+        while (read < count) {
+            if (in.read(buffer) < 0) {
+                throw new EOFException("Scenario ends after " + read + " of " + count + " vehicles");
+            }
+            buffer.flip();
+            while (read < count && buffer.remaining() >= RECORD_BYTES) {
+                int lane = buffer.getInt();
+                checkLane(lane, config, "Vehicle", read);
+                double position = buffer.getDouble();
+                double speed = buffer.getDouble();
+                int id = store.add(lane, buffer.getDouble(), buffer.getDouble(), buffer.getDouble(),
+                        buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+                store.setMotion(id, speed, position);
+                read++;
+            }
+            buffer.compact();
+        }
+        return store;
+    }
+
+    private static VehicleStore readCsv(BufferedReader in, SimConfig config) throws IOException {
+        VehicleStore store = new HeapVehicleStore(1024);
+        double[] fields = new double[9];
+        String line = in.readLine();
+        int lineNumber = 1;
+        if (line == null || !line.strip().equals(CSV_HEADER)) {
+            throw new IOException("Not a scenario file; a CSV scenario starts with the line " + CSV_HEADER);
+        }
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            parseFields(line, fields, lineNumber);
+            int lane = (int) fields[0];
+            if (lane != fields[0]) {
+                throw new IOException("Line " + lineNumber + ": lane must be a whole number, was " + fields[0]);
+            }
+            checkLane(lane, config, "Line", lineNumber);
+            int id = store.add(lane, fields[3], fields[4], fields[5], fields[6], fields[7], fields[8]);
+            store.setMotion(id, fields[2], fields[1]);
+        }
+        return store;
+    }
+
+    // Splits on commas in place; only the numbers' own text is copied out to parse it
+    private static void parseFields(String line, double[] fields, int lineNumber) throws IOException {
+        int start = 0;
+        for (int f = 0; f < fields.length; f++) {
+            int end = f == fields.length - 1 ? line.length() : line.indexOf(',', start);
+            if (end < 0) {
+                throw new IOException("Line " + lineNumber + ": expected " + fields.length + " columns, found " + (f + 1));
+            }
+            try {
+                fields[f] = Double.parseDouble(line.substring(start, end).strip());
+            } catch (NumberFormatException e) {
+                throw new IOException("Line " + lineNumber + ": column " + (f + 1) + " is not a number", e);
+            }
+            start = end + 1;
+        }
+    }
+
+    private static void checkLane(int lane, SimConfig config, String what, int which) throws IOException {
+        if (lane < 1 || lane > config.lanes()) {
+            throw new IOException(what + " " + which + " is in lane " + lane + " but the road has " + config.lanes() + " lanes");
+        }
+    }
+
+    /** Writes the vehicles on the road in {@code traffic}, as they are now, as a binary scenario. */
+    public static void save(Traffic traffic, Path file) throws IOException {
+        VehicleStore store = traffic.store();
+        try (Writer out = writer(file)) {
+            for (int id = 0; id < store.size(); id++) {
+                if (store.lane(id) > 0) {
+                    out.add(store.lane(id), store.position(id), store.speed(id), store.maxSpeed(id),
+                            store.maxAccel(id), store.desiredGap(id), store.kP(id), store.kD(id), store.length(id));
+                }
+            }
+        }
+    }
+
+    /** Writes the vehicles on the road in {@code traffic} as a CSV scenario. */
+    public static void saveCsv(Traffic traffic, Path file) throws IOException {
+        VehicleStore store = traffic.store();
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write(CSV_HEADER);
+            out.newLine();
+            for (int id = 0; id < store.size(); id++) {
+                if (store.lane(id) > 0) {
+                    out.write(store.lane(id) + "," + store.position(id) + "," + store.speed(id) + ","
+                            + store.maxSpeed(id) + "," + store.maxAccel(id) + "," + store.desiredGap(id) + ","
+                            + store.kP(id) + "," + store.kD(id) + "," + store.length(id));
+                    out.newLine();
+                }
+            }
+        }
+    }
+
+    /** Starts a binary scenario to be written one vehicle at a time. */
+    public static Writer writer(Path file) throws IOException {
+        return new Writer(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /** Streams vehicles into a binary scenario; the count goes into the header on {@link #close()}. */
+    public static final class Writer implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private int count;
+
+        private Writer(FileChannel channel) throws IOException {
+            this.channel = channel;
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(0);
+        }
+
+        public Writer add(int lane, double position, double speedMPH, double maxSpeedMPH, double maxAccel,
+                double desiredGap, double kP, double kD, double lengthFt) throws IOException {
+            if (buffer.remaining() < RECORD_BYTES) {
+                flush();
+            }
+            buffer.putInt(lane).putDouble(position).putDouble(speedMPH).putDouble(maxSpeedMPH)
+                .putDouble(maxAccel).putDouble(desiredGap).putDouble(kP).putDouble(kD).putDouble(lengthFt);
+            count++;
+            return this;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                buffer.putInt(count).flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, 8 + buffer.position());
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package trafficsim;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Length-prefixed little-endian messages over a blocking socket, loopback TCP
+ * or a Unix-domain socket. Addresses are written {@code tcp:<port>} or
+ * {@code unix:<path>}.
+ */
+final class ShardChannel implements AutoCloseable {
+    private final SocketChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocateDirect(4).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer out = buffer(1 << 16);
+    private ByteBuffer in = buffer(1 << 16);
+
+    ShardChannel(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        if (channel.getRemoteAddress() instanceof InetSocketAddress) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+    }
+
+    static ShardChannel connect(String address) throws IOException {
+        SocketAddress remote = parse(address);
+        SocketChannel channel = SocketChannel.open(remote instanceof UnixDomainSocketAddress
+            ? StandardProtocolFamily.UNIX : StandardProtocolFamily.INET);
+        channel.connect(remote);
+        return new ShardChannel(channel);
+    }
+
+    static SocketAddress parse(String address) {
+        if (address.startsWith("tcp:")) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address.substring(4)));
+        }
+        if (address.startsWith("unix:")) {
+            return UnixDomainSocketAddress.of(Path.of(address.substring(5)));
+        }
+        throw new IllegalArgumentException("Expected tcp:<port> or unix:<path>, was " + address);
+    }
+
+    static String format(SocketAddress address) {
+        if (address instanceof UnixDomainSocketAddress unix) {
+            return "unix:" + unix.getPath();
+        }
+        return "tcp:" + ((InetSocketAddress) address).getPort();
+    }
+
+    /** A cleared buffer with room for at least {@code bytes}, to fill and pass to {@link #send()}. */
+    ByteBuffer message(int bytes) {
+        if (out.capacity() < bytes) {
+            out = buffer(Math.max(bytes, out.capacity() * 2));
+        }
+        out.clear();
+        return out;
+    }
+
+    void send() throws IOException {
+        out.flip();
+        header.clear();
+        header.putInt(0, out.remaining());
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+    }
+
+    /** Blocks for the next message; the buffer is valid until the next call. */
+    ByteBuffer receive() throws IOException {
+        header.clear();
+        readFully(header);
+        int length = header.getInt(0);
+        if (in.capacity() < length) {
+            in = buffer(Math.max(length, in.capacity() * 2));
+        }
+        in.clear().limit(length);
+        readFully(in);
+        in.flip();
+        return in;
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Shard connection closed");
+            }
+        }
+    }
+
+    private static ByteBuffer buffer(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
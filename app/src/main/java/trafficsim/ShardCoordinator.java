@@ -0,0 +1,430 @@
+package trafficsim;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs one road split across several {@link ShardWorker} processes, each
+ * owning the vehicles in a contiguous range of positions, and gives the same
+ * result, bit for bit, as {@link Traffic#useSynchronousStepping} in one
+ * process. (The default in-place stepping sweeps each lane front to back over
+ * the whole road, so it can't be split by position.)
+ *
+ * Workers connect over loopback TCP or a Unix-domain socket and each tick
+ * goes:
+ * <ol>
+ * <li>workers report the vehicles that crossed into the next shard and those
+ *     near either edge; the coordinator sends each worker its migrants and
+ *     the ghosts (read-only copies) within the ghost zone of its edges, plus
+ *     the nearest vehicle ahead in each lane however far;</li>
+ * <li>workers choose lanes and send their lane-change claims, which are rare;
+ *     the coordinator resolves them front to back across the whole road as
+ *     the single-process stepper does and sends back the accepted ones;</li>
+ * <li>workers move their own vehicles.</li>
+ * </ol>
+ * The ghost zone is wide enough to cover every window the dynamics look
+ * through. Vehicles at exactly the same position are ordered by global id
+ * everywhere the single process orders them by id: in each worker's lane
+ * index and collision clamp, in lane-change resolution and in the nearest
+ * vehicles sent across shards, so ties go the same way too.
+ *
+ * No process holds the whole road. Each worker draws the starting population
+ * itself from the config's seed, in the same order as
+ * {@link Traffic#createSim(SimConfig)}, and keeps only the vehicles on its
+ * stretch; the coordinator only sees the vehicles near the edges each tick,
+ * and the final state is streamed to a {@link VehicleSink} or summed up.
+ */
+public class ShardCoordinator implements AutoCloseable {
+    private final SimConfig config;
+    private final double[] edges;
+    private final ServerSocketChannel server;
+    private final String address;
+    private final Path socketFile;
+    private double ghostZone;
+    private final List<ShardChannel> workers = new ArrayList<>();
+
+    private final VehicleBatch[] migrants;
+    private final VehicleBatch[] reports;
+    private final VehicleBatch[] claims;
+    private final VehicleBatch[] firsts;
+    private final VehicleBatch[] lasts;
+    private final VehicleBatch scratch = new VehicleBatch();
+    private final VehicleBatch arriving = new VehicleBatch();
+    private final VehicleBatch leaders = new VehicleBatch();
+
+    // Every shard's migrants and reports of the tick, indexed by lane and position
+    private final VehicleStore boundary = new HeapVehicleStore(16);
+    private int[] boundaryIds = new int[16];
+    private boolean[] boundaryMigrant = new boolean[16];
+    private final LaneIndex boundaryIndex;
+    private VehicleBatch nearestBatch;
+    private int nearestRow;
+
+    /** Receives the final state of vehicle {@code id}, row {@code row} of {@code vehicles}. */
+    public interface VehicleSink {
+        void vehicle(int id, VehicleStore vehicles, int row);
+    }
+
+    /** Summary of a finished sharded run. */
+    public record Summary(int vehicles, double averageDistance, double averageSpeed, int[] carsPerLane) {
+    }
+
+    /**
+     * Sets up a run of the scenario {@code config} describes, its vehicles
+     * drawn exactly as {@link Traffic#createSim(SimConfig)} would, split at the
+     * given ascending positions into {@code boundaries.length + 1} shards.
+     */
+    public ShardCoordinator(SimConfig config, double[] boundaries, boolean unixSocket) throws IOException {
+        for (int i = 1; i < boundaries.length; i++) {
+            if (!(boundaries[i] > boundaries[i - 1])) {
+                throw new IllegalArgumentException("Shard boundaries must be ascending: " + Arrays.toString(boundaries));
+            }
+        }
+        this.config = config;
+        this.edges = new double[boundaries.length + 2];
+        edges[0] = Double.NEGATIVE_INFINITY;
+        System.arraycopy(boundaries, 0, edges, 1, boundaries.length);
+        edges[edges.length - 1] = Double.POSITIVE_INFINITY;
+
+        int shards = boundaries.length + 1;
+        this.migrants = batches(shards);
+        this.reports = batches(shards);
+        this.claims = batches(shards);
+        this.firsts = batches(shards);
+        this.lasts = batches(shards);
+        this.boundaryIndex = new LaneIndex(boundary, config.lanes());
+        boundaryIndex.orderTiesBy(boundaryIds);
+
+        if (unixSocket) {
+            this.socketFile = Files.createTempFile("trafficsim-shards", ".sock");
+            Files.delete(socketFile);
+            this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(socketFile));
+        } else {
+            this.socketFile = null;
+            this.server = ServerSocketChannel.open(StandardProtocolFamily.INET);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        }
+        this.address = ShardChannel.format(server.getLocalAddress());
+    }
+
+    /** Where workers should connect, as passed to {@link ShardWorker#main}. */
+    public String address() {
+        return address;
+    }
+
+    public int shardCount() {
+        return edges.length - 1;
+    }
+
+    /** Starts one worker JVM per shard on this machine, with this JVM's classpath. */
+    public List<Process> launchLocalWorkers() throws IOException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < shardCount(); i++) {
+            processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    ShardWorker.class.getName(), address).inheritIO().start());
+        }
+        return processes;
+    }
+
+    /** Runs {@code ticks} ticks as {@link #run(long, VehicleSink)} does and sums up the final state. */
+    public Summary run(long ticks) throws IOException {
+        int[] carsPerLane = new int[config.lanes()];
+        double[] sums = new double[2];
+        int[] count = new int[1];
+        run(ticks, (id, vehicles, row) -> {
+            carsPerLane[vehicles.lane(row) - 1]++;
+            sums[0] += vehicles.position(row);
+            sums[1] += vehicles.speed(row);
+            count[0]++;
+        });
+        return new Summary(count[0], sums[0] / count[0], sums[1] / count[0], carsPerLane);
+    }
+
+    /**
+     * Waits for one worker per shard, runs {@code ticks} ticks and streams the
+     * final state of every vehicle to {@code sink}, shard by shard, under its id
+     * in the single-process run.
+     */
+    public void run(long ticks, VehicleSink sink) throws IOException {
+        while (workers.size() < shardCount()) {
+            workers.add(new ShardChannel(server.accept()));
+        }
+        // Workers draw their own vehicles and answer with the extremes the ghost zone depends on
+        for (int k = 0; k < shardCount(); k++) {
+            ByteBuffer out = workers.get(k).message(64);
+            out.put(ShardWorker.INIT).putInt(config.lanes()).putInt(config.cars()).putDouble(config.dt())
+                .putDouble(config.rightLaneEnd()).putDouble(config.carLengthFt()).putLong(config.seed())
+                .putDouble(edges[k]).putDouble(edges[k + 1]);
+            workers.get(k).send();
+        }
+        double maxDesired = 0;
+        double maxLength = 0;
+        double maxSpeed = 0;
+        for (int k = 0; k < shardCount(); k++) {
+            ByteBuffer in = workers.get(k).receive();
+            maxDesired = Math.max(maxDesired, in.getDouble());
+            maxLength = Math.max(maxLength, in.getDouble());
+            maxSpeed = Math.max(maxSpeed, in.getDouble());
+        }
+        ghostZone = ghostZone(maxDesired, maxLength, maxSpeed, config.dt());
+        for (int k = 0; k < shardCount(); k++) {
+            workers.get(k).message(9).put(ShardWorker.ZONE).putDouble(ghostZone);
+            workers.get(k).send();
+        }
+
+        readReports();
+        for (long t = 0; t < ticks; t++) {
+            sendGhosts();
+            resolveLaneChanges();
+            readReports();
+        }
+
+        for (int k = 0; k < shardCount(); k++) {
+            for (int i = 0; i < migrants[k].size(); i++) {
+                sink.vehicle(migrants[k].ids[i], migrants[k].vehicles, i);
+            }
+            workers.get(k).message(1).put(ShardWorker.FINISH);
+            workers.get(k).send();
+            do {
+                scratch.readFrom(workers.get(k).receive());
+                for (int i = 0; i < scratch.size(); i++) {
+                    sink.vehicle(scratch.ids[i], scratch.vehicles, i);
+                }
+            } while (scratch.size() > 0);
+        }
+    }
+
+    private void readReports() throws IOException {
+        for (int k = 0; k < shardCount(); k++) {
+            ByteBuffer in = workers.get(k).receive();
+            migrants[k].readFrom(in);
+            reports[k].readFrom(in);
+        }
+    }
+
+    /**
+     * Sends each shard its migrants, the ghosts around its edges and the
+     * nearest vehicle beyond them per lane. Every shard's migrants and reports
+     * are indexed by lane and position once, so each shard's share is a few
+     * binary searches per lane.
+     */
+    private void sendGhosts() throws IOException {
+        boundary.clear();
+        for (int j = 0; j < shardCount(); j++) {
+            collect(migrants[j], true);
+            collect(reports[j], false);
+        }
+        boundaryIndex.rebuild();
+        for (int k = 0; k < shardCount(); k++) {
+            double start = edges[k];
+            double end = edges[k + 1];
+            arriving.clear();
+            scratch.clear();
+            for (int lane = 1; lane <= config.lanes(); lane++) {
+                int behind = boundaryIndex.lowerBound(lane, start - ghostZone);
+                int first = boundaryIndex.lowerBound(lane, start);
+                int last = boundaryIndex.lowerBound(lane, end);
+                int ahead = boundaryIndex.lowerBound(lane, end + ghostZone);
+                for (int s = behind; s < first; s++) {
+                    addBoundary(scratch, boundaryIndex.carAt(lane, s));
+                }
+                for (int s = first; s < last; s++) {
+                    int b = boundaryIndex.carAt(lane, s);
+                    if (boundaryMigrant[b]) {
+                        addBoundary(arriving, b);
+                    }
+                }
+                for (int s = last; s < ahead; s++) {
+                    addBoundary(scratch, boundaryIndex.carAt(lane, s));
+                }
+                // The shard's leader lookups take the first in tie order, the lowest global id, as the index does
+                if (ahead < boundaryIndex.size(lane)) {
+                    addBoundary(scratch, boundaryIndex.carAt(lane, ahead));
+                }
+            }
+            ByteBuffer out = workers.get(k).message(1 + arriving.bytes() + scratch.bytes());
+            out.put(ShardWorker.GHOSTS);
+            arriving.writeTo(out);
+            scratch.writeTo(out);
+            workers.get(k).send();
+        }
+    }
+
+    private void collect(VehicleBatch batch, boolean migrant) {
+        for (int i = 0; i < batch.size(); i++) {
+            int b = boundary.addCopy(batch.vehicles, i);
+            if (b == boundaryIds.length) {
+                boundaryIds = Arrays.copyOf(boundaryIds, b * 2);
+                boundaryMigrant = Arrays.copyOf(boundaryMigrant, b * 2);
+                boundaryIndex.orderTiesBy(boundaryIds);
+            }
+            boundaryIds[b] = batch.ids[i];
+            boundaryMigrant[b] = migrant;
+        }
+    }
+
+    private void addBoundary(VehicleBatch batch, int b) {
+        batch.add(boundaryIds[b], boundary, b, 0);
+    }
+
+    /**
+     * Collects every shard's claims and resolves them per target lane, front to
+     * back, exactly as {@link SynchronousStepper} does; then tells every shard
+     * which changes went through and, per lane, the nearest vehicles beyond its
+     * edges afterwards. (Whether a lane is empty anywhere on the road decides
+     * whether a car near the lane end can merge at all, so even a distant
+     * vehicle behind matters.)
+     */
+    private void resolveLaneChanges() throws IOException {
+        for (int k = 0; k < shardCount(); k++) {
+            ByteBuffer in = workers.get(k).receive();
+            claims[k].readFrom(in);
+            firsts[k].readFrom(in);
+            lasts[k].readFrom(in);
+        }
+
+        List<int[]> all = new ArrayList<>();
+        double maxLength = 0;
+        for (int k = 0; k < shardCount(); k++) {
+            for (int i = 0; i < claims[k].size(); i++) {
+                all.add(new int[] {k, i});
+                maxLength = Math.max(maxLength, claims[k].vehicles.length(i));
+            }
+        }
+        // Front to back, the highest global id first at equal positions, as the stepper walks its lanes
+        all.sort((a, b) -> {
+            int byPosition = Double.compare(claims[b[0]].vehicles.position(b[1]), claims[a[0]].vehicles.position(a[1]));
+            return byPosition != 0 ? byPosition : Integer.compare(claims[b[0]].ids[b[1]], claims[a[0]].ids[a[1]]);
+        });
+        boolean[][] accepted = new boolean[shardCount()][];
+        for (int k = 0; k < shardCount(); k++) {
+            accepted[k] = new boolean[claims[k].size()];
+        }
+        List<int[]> taken = new ArrayList<>();
+        int acceptedCount = 0;
+        for (int lane = 1; lane <= config.lanes(); lane++) {
+            taken.clear();
+            double maxDesired = 0;
+            for (int[] c : all) {
+                VehicleBatch batch = claims[c[0]];
+                if (batch.targets[c[1]] != lane) {
+                    continue;
+                }
+                double pos = batch.vehicles.position(c[1]);
+                double length = batch.vehicles.length(c[1]);
+                double desired = batch.vehicles.desiredGap(c[1]);
+                double reach = (length + maxLength) / 2 + Math.max(desired, maxDesired) / 2;
+                boolean clear = true;
+                for (int t = taken.size() - 1; t >= 0; t--) {
+                    VehicleBatch other = claims[taken.get(t)[0]];
+                    int o = taken.get(t)[1];
+                    double dist = other.vehicles.position(o) - pos;
+                    if (dist >= reach) {
+                        break;
+                    }
+                    double needed = (length + other.vehicles.length(o)) / 2 + Math.max(desired, other.vehicles.desiredGap(o)) / 2;
+                    if (dist < needed) {
+                        clear = false;
+                        break;
+                    }
+                }
+                if (clear) {
+                    taken.add(c);
+                    accepted[c[0]][c[1]] = true;
+                    acceptedCount++;
+                    maxDesired = Math.max(maxDesired, desired);
+                }
+            }
+        }
+
+        for (int k = 0; k < shardCount(); k++) {
+            leaders.clear();
+            for (int lane = 1; lane <= config.lanes(); lane++) {
+                addNearest(k, lane, 1, firsts, accepted);
+                addNearest(k, lane, -1, lasts, accepted);
+            }
+            ByteBuffer out = workers.get(k).message(1 + 4 + acceptedCount * 8 + leaders.bytes());
+            out.put(ShardWorker.ACCEPTED).putInt(acceptedCount);
+            for (int j = 0; j < shardCount(); j++) {
+                for (int i = 0; i < claims[j].size(); i++) {
+                    if (accepted[j][i]) {
+                        out.putInt(claims[j].ids[i]).putInt(claims[j].targets[i]);
+                    }
+                }
+            }
+            leaders.writeTo(out);
+            workers.get(k).send();
+        }
+    }
+
+    /**
+     * Adds to {@code leaders} the vehicle nearest shard {@code k} in {@code lane}
+     * after this tick's lane changes, searching the shards ahead
+     * ({@code direction} 1) or behind (-1), from their claims and their
+     * vehicles that stay in the lane. Ties go as the lane index's leader and
+     * follower lookups break them: the lowest global id ahead, the highest
+     * behind.
+     */
+    private void addNearest(int k, int lane, int direction, VehicleBatch[] staying, boolean[][] accepted) {
+        nearestBatch = null;
+        nearestRow = -1;
+        for (int j = k + direction; j >= 0 && j < shardCount() && nearestBatch == null; j += direction) {
+            findNearest(claims[j], accepted[j], lane, direction);
+            findNearest(staying[j], null, lane, direction);
+        }
+        if (nearestBatch != null) {
+            leaders.add(nearestBatch.ids[nearestRow], nearestBatch.vehicles, nearestRow, 0);
+            leaders.vehicles.setLane(leaders.size() - 1, lane);
+        }
+    }
+
+    /** Keeps the vehicle of {@code batch} that ends up in {@code lane} nearest the shard, if nearer than the one so far. */
+    private void findNearest(VehicleBatch batch, boolean[] accepted, int lane, int direction) {
+        for (int i = 0; i < batch.size(); i++) {
+            int laneAfter = accepted != null && accepted[i] ? batch.targets[i] : batch.vehicles.lane(i);
+            if (laneAfter == lane && (nearestBatch == null
+                    || direction * batch.vehicles.position(i) < direction * nearestBatch.vehicles.position(nearestRow)
+                    || (batch.vehicles.position(i) == nearestBatch.vehicles.position(nearestRow)
+                        && direction * batch.ids[i] < direction * nearestBatch.ids[nearestRow]))) {
+                nearestBatch = batch;
+                nearestRow = i;
+            }
+        }
+    }
+
+    /** Wide enough for the lane-change, merge and collision windows of any vehicle near an edge. */
+    private static double ghostZone(double maxDesired, double maxLength, double maxSpeed, double dt) {
+        return 2 * (maxDesired + maxLength) + maxSpeed * 5280 / 3600 * dt + 10;
+    }
+
+    private static VehicleBatch[] batches(int count) {
+        VehicleBatch[] batches = new VehicleBatch[count];
+        for (int i = 0; i < count; i++) {
+            batches[i] = new VehicleBatch();
+        }
+        return batches;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ShardChannel worker : workers) {
+            worker.close();
+        }
+        server.close();
+        if (socketFile != null) {
+            Files.deleteIfExists(socketFile);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package trafficsim;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * One process of a sharded run (see {@link ShardCoordinator}): owns the
+ * vehicles in a stretch of road {@code [start, end)} and steps them
+ * synchronously, with read-only ghost copies of the vehicles around its
+ * edges. It draws its starting vehicles itself and keeps only its own.
+ *
+ * <pre>java -cp app.jar trafficsim.ShardWorker tcp:PORT   (or unix:PATH)</pre>
+ */
+public class ShardWorker {
+    static final byte INIT = 1;
+    static final byte GHOSTS = 2;
+    static final byte ACCEPTED = 3;
+    static final byte FINISH = 4;
+    static final byte ZONE = 5;
+
+    /** Vehicles per message when streaming the final state back. */
+    private static final int FINISH_CHUNK = 4096;
+
+    private final ShardChannel channel;
+    private final SimConfig config;
+    private final double start;
+    private final double end;
+    private double ghostZone;
+    private final VehicleStore store = new HeapVehicleStore(16);
+    private final SimEngine engine;
+    private final LaneIndex index;
+    /** Local id of each global id here, or -1; global ids run up to the config's car count. */
+    private final int[] localOf;
+
+    private int[] globalOf = new int[16];
+    private boolean[] owned = new boolean[16];
+    private int[] free = new int[16];
+    private int freeCount;
+    private int[] ghosts = new int[16];
+    private int ghostCount;
+    private int[] target = new int[16];
+    private double[] nextSpeed = new double[16];
+    private double[] nextPosition = new double[16];
+    private final SimEngine.MotionSink backBuffer = (id, speedMPH, position) -> {
+        nextSpeed[id] = speedMPH;
+        nextPosition[id] = position;
+    };
+
+    private final VehicleBatch incoming = new VehicleBatch();
+    private final VehicleBatch outgoing = new VehicleBatch();
+    private final VehicleBatch report = new VehicleBatch();
+    private final VehicleBatch claims = new VehicleBatch();
+
+    /** Draws the whole starting population from the seed and keeps the vehicles on {@code [start, end)}. */
+    private ShardWorker(ShardChannel channel, ByteBuffer init) {
+        this.channel = channel;
+        this.config = SimConfig.defaults().withLanes(init.getInt()).withCars(init.getInt()).withDt(init.getDouble())
+            .withRightLaneEnd(init.getDouble()).withCarLengthFt(init.getDouble()).withSeed(init.getLong())
+            .withVisualize(false);
+        this.start = init.getDouble();
+        this.end = init.getDouble();
+        this.localOf = new int[config.cars()];
+        Arrays.fill(localOf, -1);
+        this.engine = new SimEngine(store, config);
+        this.index = engine.laneIndex();
+        index.orderTiesBy(globalOf);
+        Traffic.drawPopulation(config, new SimRandom(config.seed()), (id, car) -> {
+            if (car.position(0) >= start && car.position(0) < end) {
+                place(id, car, 0, true);
+            }
+        });
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: ShardWorker tcp:<port> | unix:<path>");
+            System.exit(2);
+        }
+        run(args[0]);
+    }
+
+    /** Connects to a coordinator at {@code address} and serves until it says it is finished. */
+    public static void run(String address) throws IOException {
+        try (ShardChannel channel = ShardChannel.connect(address)) {
+            ByteBuffer message = channel.receive();
+            if (message.get() != INIT) {
+                throw new IOException("Expected the shard setup first");
+            }
+            ShardWorker worker = new ShardWorker(channel, message);
+            worker.sendExtremes();
+            message = channel.receive();
+            if (message.get() != ZONE) {
+                throw new IOException("Expected the ghost zone");
+            }
+            worker.ghostZone = message.getDouble();
+            worker.serve();
+        }
+    }
+
+    /** Tells the coordinator the largest desired gap, length and speed here, which the ghost zone must cover. */
+    private void sendExtremes() throws IOException {
+        double maxDesired = 0;
+        double maxLength = 0;
+        double maxSpeed = 0;
+        for (int id = 0; id < store.size(); id++) {
+            maxDesired = Math.max(maxDesired, store.desiredGap(id));
+            maxLength = Math.max(maxLength, store.length(id));
+            maxSpeed = Math.max(maxSpeed, Math.max(store.maxSpeed(id), store.speed(id)));
+        }
+        channel.message(24).putDouble(maxDesired).putDouble(maxLength).putDouble(maxSpeed);
+        channel.send();
+    }
+
+    private void serve() throws IOException {
+        sendReport();
+        while (true) {
+            ByteBuffer message = channel.receive();
+            byte kind = message.get();
+            if (kind == FINISH) {
+                sendOwned();
+                return;
+            }
+            if (kind != GHOSTS) {
+                throw new IOException("Unexpected message " + kind);
+            }
+            takeGhosts(message);
+            decide();
+
+            message = channel.receive();
+            if (message.get() != ACCEPTED) {
+                throw new IOException("Expected lane-change decisions");
+            }
+            applyLaneChanges(message);
+            advance();
+            sendReport();
+        }
+    }
+
+    /** Takes in migrants as owned vehicles and replaces the ghosts with this tick's. */
+    private void takeGhosts(ByteBuffer message) {
+        // Last tick's ghosts go first: a migrant arriving now was likely one of them
+        for (int g = 0; g < ghostCount; g++) {
+            drop(ghosts[g]);
+        }
+        ghostCount = 0;
+        incoming.readFrom(message);
+        for (int i = 0; i < incoming.size(); i++) {
+            place(incoming, i, true);
+        }
+        incoming.readFrom(message);
+        for (int i = 0; i < incoming.size(); i++) {
+            addGhost(incoming, i);
+        }
+    }
+
+    /** Every owned vehicle picks a lane from the start-of-tick state; changes go to the coordinator as claims. */
+    private void decide() throws IOException {
+        claims.clear();
+        for (int id = 0; id < store.size(); id++) {
+            if (owned[id] && store.lane(id) > 0) {
+                target[id] = engine.chooseLane(id);
+                if (target[id] != store.lane(id)) {
+                    claims.add(globalOf[id], store, id, target[id]);
+                }
+            }
+        }
+        // The rearmost and frontmost owned vehicles in each lane that stay there for sure,
+        // so the coordinator can find every shard's nearest vehicles ahead and behind
+        report.clear();
+        outgoing.clear();
+        for (int lane = 1; lane <= config.lanes(); lane++) {
+            for (int s = 0; s < index.size(lane); s++) {
+                int id = index.carAt(lane, s);
+                if (owned[id] && target[id] == lane) {
+                    report.add(globalOf[id], store, id, lane);
+                    break;
+                }
+            }
+            for (int s = index.size(lane) - 1; s >= 0; s--) {
+                int id = index.carAt(lane, s);
+                if (owned[id] && target[id] == lane) {
+                    outgoing.add(globalOf[id], store, id, lane);
+                    break;
+                }
+            }
+        }
+        ByteBuffer out = channel.message(claims.bytes() + report.bytes() + outgoing.bytes());
+        claims.writeTo(out);
+        report.writeTo(out);
+        outgoing.writeTo(out);
+        channel.send();
+    }
+
+    private void applyLaneChanges(ByteBuffer message) {
+        int count = message.getInt();
+        for (int k = 0; k < count; k++) {
+            int id = localOf[message.getInt()];
+            int lane = message.getInt();
+            if (id >= 0) {
+                store.setLane(id, lane);
+                index.update(id);
+            }
+        }
+        incoming.readFrom(message);
+        for (int i = 0; i < incoming.size(); i++) {
+            if (localOf[incoming.ids[i]] < 0) {
+                addGhost(incoming, i);
+            }
+        }
+    }
+
+    /** Moves every owned vehicle from the post-lane-change state, as {@link SynchronousStepper} does. */
+    private void advance() {
+        for (int id = 0; id < store.size(); id++) {
+            if (owned[id] && store.lane(id) > 0) {
+                int lane = store.lane(id);
+                int s = index.slotOf(id) + 1;
+                engine.advance(id, s < index.size(lane) ? index.carAt(lane, s) : -1, config.dt(), backBuffer);
+            }
+        }
+        for (int id = 0; id < store.size(); id++) {
+            if (owned[id] && store.lane(id) > 0) {
+                store.setMotion(id, nextSpeed[id], nextPosition[id]);
+            }
+        }
+        for (int lane = 1; lane <= config.lanes(); lane++) {
+            index.resortLane(lane);
+        }
+    }
+
+    /**
+     * Hands vehicles that crossed {@code end} to the coordinator and reports
+     * the owned vehicles other shards may need: those within the ghost zone of
+     * either edge and the rearmost one in each lane.
+     */
+    private void sendReport() throws IOException {
+        outgoing.clear();
+        report.clear();
+        for (int id = 0; id < store.size(); id++) {
+            if (owned[id] && store.lane(id) > 0 && store.position(id) >= end) {
+                outgoing.add(globalOf[id], store, id, 0);
+            }
+        }
+        for (int i = 0; i < outgoing.size(); i++) {
+            drop(localOf[outgoing.ids[i]]);
+        }
+        for (int lane = 1; lane <= config.lanes(); lane++) {
+            boolean rearmost = true;
+            for (int s = 0; s < index.size(lane); s++) {
+                int id = index.carAt(lane, s);
+                if (!owned[id]) {
+                    continue;
+                }
+                double pos = store.position(id);
+                if (rearmost || pos < start + ghostZone || pos >= end - ghostZone) {
+                    report.add(globalOf[id], store, id, 0);
+                }
+                rearmost = false;
+            }
+        }
+        ByteBuffer out = channel.message(outgoing.bytes() + report.bytes());
+        outgoing.writeTo(out);
+        report.writeTo(out);
+        channel.send();
+    }
+
+    /** Streams every owned vehicle back in chunks, ending with an empty one. */
+    private void sendOwned() throws IOException {
+        report.clear();
+        for (int id = 0; id < store.size(); id++) {
+            if (owned[id] && store.lane(id) > 0) {
+                report.add(globalOf[id], store, id, 0);
+                if (report.size() == FINISH_CHUNK) {
+                    sendAndClear(report);
+                }
+            }
+        }
+        if (report.size() > 0) {
+            sendAndClear(report);
+        }
+        sendAndClear(report);
+    }
+
+    private void sendAndClear(VehicleBatch batch) throws IOException {
+        batch.writeTo(channel.message(batch.bytes()));
+        channel.send();
+        batch.clear();
+    }
+
+    private void addGhost(VehicleBatch batch, int i) {
+        if (ghostCount == ghosts.length) {
+            ghosts = Arrays.copyOf(ghosts, ghostCount * 2);
+        }
+        ghosts[ghostCount++] = place(batch, i, false);
+    }
+
+    private int place(VehicleBatch batch, int i, boolean isOwned) {
+        return place(batch.ids[i], batch.vehicles, i, isOwned);
+    }
+
+    /** Puts a copy of {@code from}'s vehicle {@code row} on this shard's road under a pooled or new local id. */
+    private int place(int globalId, VehicleStore from, int row, boolean isOwned) {
+        int id = freeCount > 0 ? free[--freeCount] : store.allocate();
+        if (id >= globalOf.length) {
+            globalOf = Arrays.copyOf(globalOf, globalOf.length * 2);
+            owned = Arrays.copyOf(owned, globalOf.length);
+            target = Arrays.copyOf(target, globalOf.length);
+            nextSpeed = Arrays.copyOf(nextSpeed, globalOf.length);
+            nextPosition = Arrays.copyOf(nextPosition, globalOf.length);
+            index.orderTiesBy(globalOf);
+        }
+        store.reuse(id, from.lane(row), from.maxSpeed(row), from.maxAccel(row), from.desiredGap(row),
+                from.kP(row), from.kD(row), from.length(row));
+        store.setMotion(id, from.speed(row), from.position(row));
+        globalOf[id] = globalId;
+        owned[id] = isOwned;
+        localOf[globalId] = id;
+        engine.enter(id);
+        return id;
+    }
+
+    private void drop(int id) {
+        engine.leave(id);
+        localOf[globalOf[id]] = -1;
+        owned[id] = false;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = id;
+    }
+}
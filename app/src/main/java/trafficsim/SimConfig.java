@@ -0,0 +1,130 @@
+package trafficsim;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Everything that shapes one simulation run. Instances are immutable, so one
+ * config can be shared by any number of simulations running at once; the
+ * {@code with...} methods return modified copies.
+ */
+public final class SimConfig {
+    private final int lanes;
+    private final int cars;
+    private final double dt;
+    private final double simTime;
+    private final double rightLaneEnd;
+    private final double carLengthFt;
+    private final long seed;
+    private final boolean visualize;
+    private final double frameRate;
+
+    private SimConfig(int lanes, int cars, double dt, double simTime, double rightLaneEnd, double carLengthFt, long seed, boolean visualize, double frameRate) {
+        if (lanes < 1) {
+            throw new IllegalArgumentException("lanes must be at least 1, was " + lanes);
+        }
+        if (cars < 0) {
+            throw new IllegalArgumentException("cars must not be negative, was " + cars);
+        }
+        if (!(dt > 0)) {
+            throw new IllegalArgumentException("dt must be positive, was " + dt);
+        }
+        if (!(frameRate > 0)) {
+            throw new IllegalArgumentException("frameRate must be positive, was " + frameRate);
+        }
+        this.lanes = lanes;
+        this.cars = cars;
+        this.dt = dt;
+        this.simTime = simTime;
+        this.rightLaneEnd = rightLaneEnd;
+        this.carLengthFt = carLengthFt;
+        this.seed = seed;
+        this.visualize = visualize;
+        this.frameRate = frameRate;
+    }
+
+    /** The current values in {@link Constants}, with a fresh random seed. */
+    public static SimConfig defaults() {
+        return new SimConfig(Constants.lanes, Constants.cars, Constants.dt, Constants.simTime,
+                Constants.rightLaneEnd, Constants.carLengthFt, ThreadLocalRandom.current().nextLong(), false, 30);
+    }
+
+    public int lanes() {
+        return lanes;
+    }
+
+    public int cars() {
+        return cars;
+    }
+
+    public double dt() {
+        return dt;
+    }
+
+    public double simTime() {
+        return simTime;
+    }
+
+    /** Position of the end of the right-most lane, or a non-positive value if it never ends. */
+    public double rightLaneEnd() {
+        return rightLaneEnd;
+    }
+
+    public double carLengthFt() {
+        return carLengthFt;
+    }
+
+    public long seed() {
+        return seed;
+    }
+
+    public boolean visualize() {
+        return visualize;
+    }
+
+    /** Frames per second drawn when visualizing; frames the terminal can't keep up with are skipped. */
+    public double frameRate() {
+        return frameRate;
+    }
+
+    public SimConfig withLanes(int lanes) {
+        return new SimConfig(lanes, cars, dt, simTime, rightLaneEnd, carLengthFt, seed, visualize, frameRate);
+    }
+
+    public SimConfig withCars(int cars) {
+        return new SimConfig(lanes, cars, dt, simTime, rightLaneEnd, carLengthFt, seed, visualize, frameRate);
+    }
+
+    public SimConfig withDt(double dt) {
+        return new SimConfig(lanes, cars, dt, simTime, rightLaneEnd, carLengthFt, seed, visualize, frameRate);
+    }
+
+    public SimConfig withSimTime(double simTime) {
+        return new SimConfig(lanes, cars, dt, simTime, rightLaneEnd, carLengthFt, seed, visualize, frameRate);
+    }
+
+    public SimConfig withRightLaneEnd(double rightLaneEnd) {
+        return new SimConfig(lanes, cars, dt, simTime, rightLaneEnd, carLengthFt, seed, visualize, frameRate);
+    }
+
+    public SimConfig withCarLengthFt(double carLengthFt) {
+        return new SimConfig(lanes, cars, dt, simTime, rightLaneEnd, carLengthFt, seed, visualize, frameRate);
+    }
+
+    public SimConfig withSeed(long seed) {
+        return new SimConfig(lanes, cars, dt, simTime, rightLaneEnd, carLengthFt, seed, visualize, frameRate);
+    }
+
+    public SimConfig withVisualize(boolean visualize) {
+        return new SimConfig(lanes, cars, dt, simTime, rightLaneEnd, carLengthFt, seed, visualize, frameRate);
+    }
+
+    public SimConfig withFrameRate(double frameRate) {
+        return new SimConfig(lanes, cars, dt, simTime, rightLaneEnd, carLengthFt, seed, visualize, frameRate);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("lanes=%d cars=%d dt=%s simTime=%s rightLaneEnd=%s carLengthFt=%s seed=%d",
+                lanes, cars, dt, simTime, rightLaneEnd, carLengthFt, seed);
+    }
+}
@@ -0,0 +1,596 @@
+package trafficsim;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * The per-step vehicle dynamics (lane changes, PD speed control, merge
+ * handling and collision clamping), working on vehicle ids in a
+ * {@link VehicleStore} rather than on {@link Car} objects.
+ */
+public class SimEngine {
+    private final VehicleStore store;
+    private final LaneIndex index;
+    private final int lanes;
+    private final double rightLaneEnd;
+    private int[] laneOrder;
+    private SimMetrics metrics;
+    private TrafficStats stats;
+    private int freeFlowHorizon;
+    private int[] freeTicks;
+    private double[] freeReach;
+    private double maxReachAhead;
+    private int laneCheckInterval;
+    private int[] laneCheckWait;
+    private int[] checkedLeader;
+
+    public SimEngine(VehicleStore store, SimConfig config) {
+        this.store = store;
+        this.lanes = config.lanes();
+        this.rightLaneEnd = config.rightLaneEnd();
+        this.index = new LaneIndex(store, lanes);
+        this.laneOrder = new int[store.size()];
+    }
+
+    public VehicleStore store() {
+        return store;
+    }
+
+    public LaneIndex laneIndex() {
+        return index;
+    }
+
+    public int getNumLanes() {
+        return lanes;
+    }
+
+    /** Starts (or, with null, stops) counting events and timing phases. */
+    public void setMetrics(SimMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public SimMetrics metrics() {
+        return metrics;
+    }
+
+    /** Starts (or, with null, stops) reporting every move to {@code stats}. */
+    public void setStats(TrafficStats stats) {
+        this.stats = stats;
+    }
+
+    public TrafficStats stats() {
+        return stats;
+    }
+
+    /**
+     * Enables the free-flow fast path for up to {@code horizonTicks} ticks at a
+     * time (0 turns it off). A car whose leader is far enough away that, even if
+     * the leader stood still and the car drove at top speed, neither the
+     * lane-change check nor speed control could react to it within the horizon
+     * is certified free for that many ticks. Until then it skips the lane-change,
+     * merge and collision logic and only accelerates toward its max speed, which
+     * is exactly what the full update would do, so results are unchanged. A car
+     * changing lanes cancels the certificates of the cars it cuts in front of.
+     */
+    public void setFreeFlowHorizon(int horizonTicks) {
+        if (horizonTicks < 0) {
+            throw new IllegalArgumentException("horizonTicks must not be negative, was " + horizonTicks);
+        }
+        this.freeFlowHorizon = horizonTicks;
+        this.freeTicks = horizonTicks == 0 ? null : new int[store.size()];
+        this.freeReach = horizonTicks == 0 ? null : new double[store.size()];
+        this.maxReachAhead = 0;
+    }
+
+    /**
+     * Has each car re-evaluate lane changes only every {@code intervalTicks}
+     * ticks (0 or 1: every tick) and stay in its lane in between, unless its
+     * leader has changed since it last looked or it is in the merge zone
+     * before the lane end, where it reacts at once. Other cars moving in the
+     * target lanes are picked up at the next evaluation, so results differ
+     * slightly from evaluating every tick.
+     */
+    public void setLaneChangeInterval(int intervalTicks) {
+        if (intervalTicks < 0) {
+            throw new IllegalArgumentException("intervalTicks must not be negative, was " + intervalTicks);
+        }
+        this.laneCheckInterval = intervalTicks;
+        this.laneCheckWait = intervalTicks <= 1 ? null : new int[store.size()];
+        this.checkedLeader = intervalTicks <= 1 ? null : new int[store.size()];
+    }
+
+    int freeFlowHorizon() {
+        return freeFlowHorizon;
+    }
+
+    int laneChangeInterval() {
+        return laneCheckInterval;
+    }
+
+    /** Writes each of the first {@code count} vehicles' lane-change throttle state; see {@link Checkpoint}. */
+    void writeLaneChangeThrottle(WritableByteChannel out, ByteBuffer scratch, int count) throws IOException {
+        Checkpoint.writeInts(out, scratch, Arrays.copyOf(laneCheckWait, count), count);
+        Checkpoint.writeInts(out, scratch, Arrays.copyOf(checkedLeader, count), count);
+    }
+
+    /** Reads what {@link #writeLaneChangeThrottle} wrote, after {@link #setLaneChangeInterval}. */
+    void readLaneChangeThrottle(ReadableByteChannel in, ByteBuffer scratch, int count) throws IOException {
+        Checkpoint.readInts(in, scratch, laneCheckWait, count);
+        Checkpoint.readInts(in, scratch, checkedLeader, count);
+    }
+
+    /** Puts vehicle {@code id}, already placed in the store, onto the road. */
+    public void enter(int id) {
+        index.enter(id);
+        if (laneOrder.length < store.size()) {
+            laneOrder = Arrays.copyOf(laneOrder, Math.max(store.size(), laneOrder.length * 2));
+        }
+        if (freeTicks != null) {
+            if (freeTicks.length <= id) {
+                freeTicks = Arrays.copyOf(freeTicks, laneOrder.length);
+                freeReach = Arrays.copyOf(freeReach, laneOrder.length);
+            }
+            freeTicks[id] = 0;
+        }
+        if (laneCheckWait != null) {
+            if (laneCheckWait.length <= id) {
+                laneCheckWait = Arrays.copyOf(laneCheckWait, laneOrder.length);
+                checkedLeader = Arrays.copyOf(checkedLeader, laneOrder.length);
+            }
+            laneCheckWait[id] = 0;
+        }
+    }
+
+    /** Takes vehicle {@code id} off the road; it is left in lane 0 for reuse. */
+    public void leave(int id) {
+        if (stats != null) {
+            stats.removed(store.position(id), store.speed(id));
+        }
+        index.leave(id);
+        store.setLane(id, 0);
+        if (freeTicks != null) {
+            freeTicks[id] = 0;
+        }
+    }
+
+    /** Advances every vehicle by one tick, lane by lane, front to back, updating in place. */
+    public void step(double dt) {
+        for (int laneNum = 1; laneNum <= lanes; laneNum++) {
+            // Snapshot the lane front to back; vehicles keep the index current as they move
+            int count;
+            if (metrics != null) {
+                long start = System.nanoTime();
+                count = index.copyFrontToBack(laneNum, laneOrder);
+                metrics.record(SimMetrics.Phase.LANE_SNAPSHOT, System.nanoTime() - start);
+            } else {
+                count = index.copyFrontToBack(laneNum, laneOrder);
+            }
+
+            for (int i = 0; i < count; i++) {
+                int ahead = (i > 0) ? laneOrder[i - 1] : -1;
+                update(laneOrder[i], ahead, dt);
+            }
+        }
+    }
+
+    /** Closest vehicle strictly ahead of {@code id} in the given lane, or -1. */
+    public int findFrontCar(int id, int laneToCheck) {
+        if (laneToCheck == store.lane(id)) {
+            return index.leaderOf(id);
+        }
+        return index.leader(laneToCheck, store.position(id));
+    }
+
+    public void tryLaneChange(int id) {
+        int newLane = decideLane(id);
+        if (newLane != store.lane(id)) {
+            store.setLane(id, newLane);
+            index.update(id);
+            if (metrics != null) {
+                metrics.laneChanged();
+            }
+            if (freeTicks != null) {
+                revokeFreeFlowBehind(id);
+            }
+        }
+    }
+
+    /**
+     * The lane {@code id} moves to this tick: {@link #chooseLane}, or with a
+     * lane-change interval set, its current lane while its last decision
+     * still stands. Only touches {@code id}'s own throttle state, so cars can
+     * decide concurrently.
+     */
+    public int decideLane(int id) {
+        int frontCar = index.leaderOf(id);
+        if (laneCheckWait != null) {
+            if (laneCheckWait[id] > 0 && checkedLeader[id] == frontCar && !inMergeZone(id)) {
+                laneCheckWait[id]--;
+                if (metrics != null) {
+                    metrics.laneCheckSkipped();
+                }
+                return store.lane(id);
+            }
+            laneCheckWait[id] = laneCheckInterval - 1;
+            checkedLeader[id] = frontCar;
+        }
+        return chooseLane(id, frontCar);
+    }
+
+    private boolean inMergeZone(int id) {
+        return rightLaneEnd - store.position(id) < 600 && rightLaneEnd > 0 && store.lane(id) == lanes;
+    }
+
+    /** The lane {@code id} would move to this tick, or its current lane. Reads state only. */
+    public int chooseLane(int id) {
+        return chooseLane(id, index.leaderOf(id));
+    }
+
+    // frontCar is the car ahead in id's own lane, looked up once and reused for every candidate lane
+    private int chooseLane(int id, int frontCar) {
+        int lane = store.lane(id);
+        double pos = store.position(id);
+        double desired = store.desiredGap(id);
+
+        if ((frontCar < 0 || store.position(frontCar) - pos > desired * 2.5) && !inMergeZone(id)) {
+            return lane; // No need to change lane, enough space ahead
+        }
+        if (metrics != null) {
+            metrics.laneChangeEvaluated();
+        }
+
+        double length = store.length(id);
+        for (int dir = -1; dir <= 1; dir += 2) { // Check left (-1) and right (+1)
+            boolean requiredChange = false;
+            int newLane = lane + dir;
+            boolean rightLaneAvailable = rightLaneEnd < 0 || pos < rightLaneEnd;
+            if (newLane < 1 || newLane > (rightLaneAvailable ? lanes : lanes - 1)) {
+                continue;
+            }
+
+            boolean laneClear = true;
+            double minGapBehind = desired / 2;
+            double minGapAhead = desired / 2;
+
+            // Only vehicles within half a gap plus a car length either side can block the change
+            double reach = length / 2 + index.maxLength() / 2 + 1;
+            double windowEnd = pos + minGapAhead + reach;
+            for (int s = index.lowerBound(newLane, pos - minGapBehind - reach); s < index.size(newLane); s++) {
+                int other = index.carAt(newLane, s);
+                double otherPos = store.position(other);
+                if (otherPos > windowEnd) {
+                    break;
+                }
+
+                double gap = otherPos - pos;
+
+                if (gap > 0) {
+                    // Vehicle is ahead in the new lane
+                    double distAhead = (otherPos - store.length(other) / 2) - (pos + length / 2);
+                    if (distAhead < minGapAhead) {
+                        laneClear = false;
+                        break;
+                    }
+                } else {
+                    // Vehicle is behind in the new lane
+                    double distBehind = (pos - length / 2) - (otherPos + store.length(other) / 2);
+                    if (distBehind < minGapBehind) {
+                        laneClear = false;
+                        break;
+                    }
+                }
+            }
+            if (rightLaneEnd - pos < 600 && rightLaneEnd > 0 && newLane == lanes) {
+                laneClear = false;
+            }
+
+            boolean wouldBeFaster = false;
+            if (laneClear) {
+                // Only needed once the lane is known to be clear
+                int frontInNewLane = frontCar < 0 ? -1 : findFrontCar(id, newLane);
+                if (frontCar < 0) {
+                    wouldBeFaster = false; // No vehicle ahead in current lane, so no benefit
+                } else if (frontInNewLane < 0) {
+                    wouldBeFaster = true; // No vehicle ahead in new lane
+                } else {
+                    double gapCurrent = store.position(frontCar) - pos;
+                    double gapNew = store.position(frontInNewLane) - pos;
+
+                    double speedCurrent = store.speed(frontCar);
+                    double speedNew = store.speed(frontInNewLane);
+
+                    // Prefer lane if more space or if front vehicle is faster
+                    wouldBeFaster = (gapNew > gapCurrent) || (speedNew > speedCurrent);
+                }
+            }
+
+            if (lane == lanes && rightLaneEnd > 0 && pos > rightLaneEnd - 500) {
+                requiredChange = true;
+            }
+
+            if (laneClear && (wouldBeFaster || requiredChange)) {
+                return newLane;
+            }
+        }
+        return lane;
+    }
+
+    /** Updates one vehicle; {@code ahead} is the vehicle in front of it in this tick's lane snapshot, or -1. */
+    public void update(int id, int ahead, double dt) {
+        if (stats != null) {
+            double before = store.position(id);
+            double speedBefore = store.speed(id);
+            move(id, ahead, dt);
+            stats.moved(id, store.lane(id), before, store.position(id), speedBefore, store.speed(id), dt);
+        } else {
+            move(id, ahead, dt);
+        }
+    }
+
+    private void move(int id, int ahead, double dt) {
+        if (freeTicks != null && (freeTicks[id] > 0 || certifyFreeFlow(id, dt))) {
+            freeTicks[id]--;
+            cruise(id, dt);
+            index.update(id);
+            if (metrics != null) {
+                metrics.freeFlowMove();
+            }
+            return;
+        }
+        if (metrics != null && metrics.sampleCall()) {
+            long start = System.nanoTime();
+            tryLaneChange(id);
+            long changed = System.nanoTime();
+            advance(id, ahead, dt, store);
+            index.update(id);
+            metrics.record(SimMetrics.Phase.LANE_CHANGE, changed - start);
+            metrics.record(SimMetrics.Phase.MOTION, System.nanoTime() - changed);
+            return;
+        }
+        tryLaneChange(id);
+        advance(id, ahead, dt, store);
+        index.update(id);
+    }
+
+    /**
+     * Computes the vehicle's speed and position after {@code dt} in its current
+     * lane and hands them to {@code out}. Reads state only; the store is
+     * changed only if it is the sink.
+     */
+    public void advance(int id, int ahead, double dt, MotionSink out) {
+        int lane = store.lane(id);
+        double pos = store.position(id);
+        double speed = store.speed(id);
+        double maxSpeed = store.maxSpeed(id);
+        double desired = store.desiredGap(id);
+        double length = store.length(id);
+
+        double targetSpeed = maxSpeed;
+
+        if (ahead >= 0 && store.lane(ahead) == lane) {
+            double gap = (store.position(ahead) - (store.length(ahead) / 2)) - (pos + (length / 2));
+            double relativeSpeed = store.speed(ahead) - speed;
+
+            // Adjust target speed using PD control
+            double error = gap - desired;
+            double derivative = relativeSpeed;
+
+            double speedAdjustment = store.kP(id) * error + store.kD(id) * derivative;
+
+            targetSpeed = speed + speedAdjustment;
+
+            targetSpeed = Math.min(maxSpeed, Math.max(0, targetSpeed));
+        }
+
+        if (lane == lanes) {
+            double distanceToEnd = rightLaneEnd - (pos + length / 2);
+
+            if (distanceToEnd < 700 && rightLaneEnd > 0) {
+                boolean canChange = false;
+                int newLane = lane - 1;
+
+                if (newLane >= 1 && index.size(newLane) > 0) {
+                    canChange = true;
+                    double window = desired + 1;
+                    for (int s = index.lowerBound(newLane, pos - window); s < index.size(newLane); s++) {
+                        double otherPos = store.position(index.carAt(newLane, s));
+                        double dist = Math.abs(otherPos - pos);
+                        if (dist < desired) {
+                            speed /= 2;
+                            targetSpeed /= 2;
+                            canChange = false;
+                            if (metrics != null) {
+                                metrics.mergeSlowdown();
+                            }
+                            break;
+                        }
+                        if (otherPos > pos + window) {
+                            break;
+                        }
+                    }
+                }
+
+                if (!canChange) {
+                    // Slow down to avoid driving off the road
+                    targetSpeed = Math.min(targetSpeed, (distanceToEnd / 10)); // braking logic
+                }
+            }
+
+            // Actually stop if we hit the end and couldn't merge
+            if (distanceToEnd <= 30 && rightLaneEnd > 0) {
+                targetSpeed = 0;
+                speed /= 2;
+                if (metrics != null) {
+                    metrics.laneEndStop();
+                }
+            }
+        }
+
+        // Apply acceleration limits
+        double speedDiff = targetSpeed - speed;
+        double maxDelta = store.maxAccel(id) * dt;
+
+        if (Math.abs(speedDiff) > maxDelta) {
+            speedDiff = Math.copySign(maxDelta, speedDiff);
+        }
+
+        speed += speedDiff;
+
+        // Update position based on new speed
+        double feetPerHour = speed * 5280;
+        double feetPerSecond = feetPerHour / 3600;
+        double movementFeet = feetPerSecond * dt;
+
+        finishMove(id, speed, movementFeet, dt, out);
+    }
+
+    /**
+     * True if {@code id} is in the dropping lane close enough to its end for
+     * the merge and stop rules in {@link #advance} to apply.
+     */
+    public boolean nearLaneEnd(int id) {
+        return store.lane(id) == lanes && rightLaneEnd > 0
+            && rightLaneEnd - (store.position(id) + store.length(id) / 2) < 700;
+    }
+
+    /**
+     * The end of {@link #advance}: cuts the proposed move short if it would
+     * overlap another vehicle and hands the result to {@code out}. Lets a
+     * kernel that computed speed and movement for many cars at once finish
+     * each one exactly as {@code advance} would.
+     */
+    public void finishMove(int id, double speed, double movementFeet, double dt, MotionSink out) {
+        int lane = store.lane(id);
+        double pos = store.position(id);
+        double length = store.length(id);
+
+        double proposedFront = pos + movementFeet + (length / 2);
+        double proposedBack = pos + movementFeet - (length / 2);
+
+        // Of the vehicles overlapping the proposed spot, the first in tie order (lowest id) decides the clamp
+        int blocker = -1;
+        double halfMax = index.maxLength() / 2 + 1;
+        for (int s = index.lowerBound(lane, proposedBack - halfMax); s < index.size(lane); s++) {
+            int other = index.carAt(lane, s);
+            double otherPos = store.position(other);
+            if (otherPos > proposedFront + halfMax) break;
+            if (other == id) continue;
+
+            double otherFront = otherPos + (store.length(other) / 2);
+            double otherBack = otherPos - (store.length(other) / 2);
+
+            boolean overlaps = !(proposedBack >= otherFront || proposedFront <= otherBack);
+            if (overlaps && (blocker < 0 || index.precedes(other, blocker))) {
+                blocker = other;
+            }
+        }
+        if (blocker >= 0) {
+            // Collision would happen, cancel movement
+            double otherBack = store.position(blocker) - (store.length(blocker) / 2);
+            movementFeet = Math.max(0, otherBack - (length / 2) - pos - 1);
+            speed = Math.max(0, speed - 10 * dt);
+            if (metrics != null) {
+                metrics.collisionClamped();
+            }
+        }
+        out.setMotion(id, speed, pos + movementFeet);
+    }
+
+    /**
+     * The part of {@link #advance} that applies to a car with no leader in
+     * range, no lane end ahead and nothing overlapping it: accelerate toward max
+     * speed and move. Same operations in the same order, so the same bits.
+     */
+    private void cruise(int id, double dt) {
+        double speed = store.speed(id);
+        double speedDiff = store.maxSpeed(id) - speed;
+        double maxDelta = store.maxAccel(id) * dt;
+        if (Math.abs(speedDiff) > maxDelta) {
+            speedDiff = Math.copySign(maxDelta, speedDiff);
+        }
+        speed += speedDiff;
+        double movementFeet = speed * 5280 / 3600 * dt;
+        store.setMotion(id, speed, store.position(id) + movementFeet);
+    }
+
+    /**
+     * Works out how many ticks {@code id} is guaranteed to be in free flow and
+     * records them; false if not even this one.
+     */
+    private boolean certifyFreeFlow(int id, double dt) {
+        int lane = store.lane(id);
+        double pos = store.position(id);
+        double speed = store.speed(id);
+        double maxSpeed = store.maxSpeed(id);
+        double desired = store.desiredGap(id);
+        double length = store.length(id);
+        double kP = store.kP(id);
+        double kD = store.kD(id);
+        if (kP <= 0 || kD < 0 || kD > 1 || speed < 0) {
+            return false;
+        }
+
+        // Nothing may overlap the car now; the car behind is clamped against it from then on
+        int slot = index.slotOf(id);
+        if (slot > 0) {
+            int behind = index.carAt(lane, slot - 1);
+            if (store.position(behind) + index.maxLength() / 2 > pos - length / 2) {
+                return false;
+            }
+        }
+
+        // Speed only moves toward max speed, so it stays between the two, and
+        // speed control asks for max speed while speed + kP * (gap - desired) - kD * speed
+        // does, even with the leader stopped
+        double slowest = Math.min(speed, maxSpeed);
+        double fastest = Math.max(speed, maxSpeed);
+        double worstDamping = Math.min(slowest * (1 - kD), fastest * (1 - kD));
+        double controlGap = desired + (maxSpeed - worstDamping) / kP + 1;
+        double clearance = Math.max(desired * 2.5 + 1, controlGap + length / 2 + index.maxLength() / 2);
+
+        double perTick = fastest * 5280 / 3600 * dt;
+        double travel = freeFlowHorizon * perTick;
+        if (slot + 1 < index.size(lane)) {
+            int leader = index.carAt(lane, slot + 1);
+            double centerGap = store.position(leader) - pos;
+            double bumperGap = centerGap - index.maxLength() / 2 - length / 2;
+            travel = Math.min(travel, Math.min(centerGap - desired * 2.5 - 1, bumperGap - controlGap));
+        }
+        if (lane == lanes && rightLaneEnd > 0) {
+            // Stay clear of the merge zone before the lane end
+            travel = Math.min(travel, rightLaneEnd - 701 - length / 2 - pos);
+        }
+
+        int ticks = perTick > 0 ? (int) Math.min(freeFlowHorizon, Math.floor(travel / perTick)) : (travel > 0 ? freeFlowHorizon : 0);
+        if (ticks < 1) {
+            return false;
+        }
+        freeTicks[id] = ticks;
+        freeReach[id] = pos + ticks * perTick + clearance;
+        maxReachAhead = Math.max(maxReachAhead, freeReach[id] - pos);
+        return true;
+    }
+
+    /** Cancels free flow for cars behind {@code id} in its new lane whose certificate assumed the space was empty. */
+    private void revokeFreeFlowBehind(int id) {
+        int lane = store.lane(id);
+        double pos = store.position(id) - store.length(id) / 2;
+        for (int s = index.slotOf(id) - 1; s >= 0; s--) {
+            int other = index.carAt(lane, s);
+            if (pos - store.position(other) > maxReachAhead) {
+                break;
+            }
+            if (freeTicks[other] > 0 && freeReach[other] >= pos) {
+                freeTicks[other] = 0;
+            }
+        }
+    }
+
+    /** Receives a vehicle's new speed and position from {@link #advance}. */
+    public interface MotionSink {
+        void setMotion(int id, double speedMPH, double position);
+    }
+}
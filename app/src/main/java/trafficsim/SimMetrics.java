@@ -0,0 +1,217 @@
+package trafficsim;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and phase timings for one simulation, collected only after
+ * {@link Traffic#enableMetrics()}. Without it the engine holds no metrics
+ * object and every hook is a single null check.
+ *
+ * Counters may be bumped from the synchronous stepper's worker threads.
+ * Timings are recorded on the thread driving the simulation: whole steps and
+ * per-lane snapshots every tick, and lane-change/motion work for one car call
+ * in {@value #SAMPLE_EVERY}, which keeps the clock reads off most of the hot
+ * loop.
+ */
+public class SimMetrics {
+    static final int SAMPLE_EVERY = 64;
+
+    public enum Phase {
+        /** A whole Traffic.step(). */
+        STEP,
+        /** Taking a lane's front-to-back snapshot (the old per-lane filter and sort). */
+        LANE_SNAPSHOT,
+        /** One car's lane-change evaluation, sampled. */
+        LANE_CHANGE,
+        /** One car's speed control, merge handling and collision check, sampled. */
+        MOTION,
+        SYNC_DECIDE,
+        SYNC_RESOLVE,
+        SYNC_APPLY,
+        SYNC_ADVANCE,
+        SYNC_COMMIT,
+        SYNC_RESORT
+    }
+
+    private final LongAdder laneChangeEvaluations = new LongAdder();
+    private final LongAdder laneChanges = new LongAdder();
+    private final LongAdder laneChangeConflicts = new LongAdder();
+    private final LongAdder collisionClamps = new LongAdder();
+    private final LongAdder mergeSlowdowns = new LongAdder();
+    private final LongAdder laneEndStops = new LongAdder();
+    private final LongAdder freeFlowMoves = new LongAdder();
+    private final LongAdder laneChecksSkipped = new LongAdder();
+    private final Histogram[] byPhase = new Histogram[Phase.values().length];
+
+    private long steps;
+    private long firstStepNanos;
+    private long lastStepNanos;
+    private int callCounter;
+    private long emittedLaneChanges;
+    private long emittedEvaluations;
+    private long emittedClamps;
+    private long emittedSlowdowns;
+
+    public SimMetrics() {
+        for (Phase phase : Phase.values()) {
+            byPhase[phase.ordinal()] = new Histogram();
+        }
+    }
+
+    /** Times of the given phase, in nanoseconds. */
+    public Histogram timing(Phase phase) {
+        return byPhase[phase.ordinal()];
+    }
+
+    void record(Phase phase, long nanos) {
+        byPhase[phase.ordinal()].record(nanos);
+    }
+
+    void stepFinished(long startNanos, long endNanos) {
+        if (steps == 0) {
+            firstStepNanos = startNanos;
+        }
+        steps++;
+        lastStepNanos = endNanos;
+        byPhase[Phase.STEP.ordinal()].record(endNanos - startNanos);
+    }
+
+    /** Fills a JFR step event with what was counted since the previous one. */
+    void fill(StepEvent event) {
+        long changes = laneChanges();
+        long evaluations = laneChangeEvaluations();
+        long clamps = collisionClamps();
+        long slowdowns = mergeSlowdowns();
+        event.laneChanges = changes - emittedLaneChanges;
+        event.laneChangeEvaluations = evaluations - emittedEvaluations;
+        event.collisionClamps = clamps - emittedClamps;
+        event.mergeSlowdowns = slowdowns - emittedSlowdowns;
+        emittedLaneChanges = changes;
+        emittedEvaluations = evaluations;
+        emittedClamps = clamps;
+        emittedSlowdowns = slowdowns;
+    }
+
+    /** True for one call in {@value #SAMPLE_EVERY}; single-threaded callers only. */
+    boolean sampleCall() {
+        return (++callCounter & (SAMPLE_EVERY - 1)) == 0;
+    }
+
+    void laneChangeEvaluated() {
+        laneChangeEvaluations.increment();
+    }
+
+    void laneChanged() {
+        laneChanges.increment();
+    }
+
+    void laneChanged(int count) {
+        laneChanges.add(count);
+    }
+
+    void laneChangeConflict() {
+        laneChangeConflicts.increment();
+    }
+
+    void collisionClamped() {
+        collisionClamps.increment();
+    }
+
+    void mergeSlowdown() {
+        mergeSlowdowns.increment();
+    }
+
+    void laneEndStop() {
+        laneEndStops.increment();
+    }
+
+    void freeFlowMove() {
+        freeFlowMoves.increment();
+    }
+
+    void laneCheckSkipped() {
+        laneChecksSkipped.increment();
+    }
+
+    public long steps() {
+        return steps;
+    }
+
+    /** Steps per second of wall time between the first and last recorded step. */
+    public double stepsPerSecond() {
+        long elapsed = lastStepNanos - firstStepNanos;
+        return elapsed <= 0 ? 0 : steps * 1e9 / elapsed;
+    }
+
+    /** Cars that got past the "enough space ahead" check and looked at other lanes. */
+    public long laneChangeEvaluations() {
+        return laneChangeEvaluations.sum();
+    }
+
+    public long laneChanges() {
+        return laneChanges.sum();
+    }
+
+    /** Lane changes refused by synchronous stepping because another car claimed the same gap. */
+    public long laneChangeConflicts() {
+        return laneChangeConflicts.sum();
+    }
+
+    /** Moves cut short because the car would have overlapped another. */
+    public long collisionClamps() {
+        return collisionClamps.sum();
+    }
+
+    /** Right-lane cars that halved their speed near the lane end because a car was alongside. */
+    public long mergeSlowdowns() {
+        return mergeSlowdowns.sum();
+    }
+
+    /** Right-lane cars held at the lane end because they could not merge. */
+    public long laneEndStops() {
+        return laneEndStops.sum();
+    }
+
+    /** Car updates taken by the free-flow fast path instead of the full update. */
+    public long freeFlowMoves() {
+        return freeFlowMoves.sum();
+    }
+
+    /** Lane-change decisions kept from an earlier tick by the lane-change throttle. */
+    public long laneChecksSkipped() {
+        return laneChecksSkipped.sum();
+    }
+
+    public void reset() {
+        for (Histogram h : byPhase) {
+            h.reset();
+        }
+        laneChangeEvaluations.reset();
+        laneChanges.reset();
+        laneChangeConflicts.reset();
+        collisionClamps.reset();
+        mergeSlowdowns.reset();
+        laneEndStops.reset();
+        freeFlowMoves.reset();
+        laneChecksSkipped.reset();
+        steps = 0;
+        emittedLaneChanges = 0;
+        emittedEvaluations = 0;
+        emittedClamps = 0;
+        emittedSlowdowns = 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("steps=%d (%.1f/s) laneChanges=%d/%d evaluated conflicts=%d collisionClamps=%d mergeSlowdowns=%d laneEndStops=%d freeFlowMoves=%d laneChecksSkipped=%d%n",
+                steps, stepsPerSecond(), laneChanges(), laneChangeEvaluations(), laneChangeConflicts(),
+                collisionClamps(), mergeSlowdowns(), laneEndStops(), freeFlowMoves(), laneChecksSkipped()));
+        for (Phase phase : Phase.values()) {
+            if (timing(phase).count() > 0) {
+                sb.append(String.format("  %-13s ns %s%n", phase, timing(phase)));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,69 @@
+package trafficsim;
+
+/**
+ * Seeded, splittable random source owned by one simulation (SplitMix64, the
+ * same generator as {@link java.util.SplittableRandom}). Unlike
+ * {@code SplittableRandom} its state can be read back, so a run can be saved
+ * and resumed with the same random sequence.
+ */
+public class SimRandom {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+    private long seed;
+    private final long gamma;
+
+    public SimRandom(long seed) {
+        this(seed, GOLDEN_GAMMA);
+    }
+
+    private SimRandom(long seed, long gamma) {
+        this.seed = seed;
+        this.gamma = gamma;
+    }
+
+    /** Recreates a generator from {@link #state()} and {@link #gamma()}. */
+    public static SimRandom restore(long state, long gamma) {
+        return new SimRandom(state, gamma);
+    }
+
+    public long state() {
+        return seed;
+    }
+
+    public long gamma() {
+        return gamma;
+    }
+
+    public long nextLong() {
+        return mix64(nextSeed());
+    }
+
+    /** Uniform in [0, 1). */
+    public double nextDouble() {
+        return (nextLong() >>> 11) * DOUBLE_UNIT;
+    }
+
+    /** A new generator whose sequence is independent of this one's remaining sequence. */
+    public SimRandom split() {
+        return new SimRandom(nextLong(), mixGamma(nextSeed()));
+    }
+
+    private long nextSeed() {
+        return seed += gamma;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long mixGamma(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        z = (z ^ (z >>> 33)) | 1L;
+        int n = Long.bitCount(z ^ (z >>> 1));
+        return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+    }
+}
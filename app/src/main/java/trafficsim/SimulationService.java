@@ -0,0 +1,423 @@
+package trafficsim;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A long-running local service that runs simulations submitted over HTTP, so
+ * many short scenarios share one warmed-up JVM instead of paying start-up and
+ * JIT warm-up each. It listens on the loopback interface only.
+ *
+ * <pre>
+ * POST   /jobs?lanes=3&amp;cars=500&amp;simTime=60&amp;seed=7   start a job; 202 with its id
+ * GET    /jobs                 every job's status
+ * GET    /jobs/{id}            one job's status, with the final statistics once done
+ * GET    /jobs/{id}/events     progress as JSON lines while the job runs, ending with its final status
+ * DELETE /jobs/{id}            cancel a job
+ * </pre>
+ *
+ * A submission's query sets any of {@code lanes}, {@code cars}, {@code dt},
+ * {@code simTime}, {@code rightLaneEnd}, {@code carLengthFt} and {@code seed}
+ * on top of {@link SimConfig#defaults()}, and {@code progressEvery} (simulated
+ * seconds between progress events, 1 by default). {@code steadyWindow}
+ * (seconds) ends the job early once the traffic settles to within
+ * {@code steadyTolerance} (0.02 by default), see
+ * {@link Traffic#stopWhenSteady}; the final status then says whether it did.
+ * A request body, if any, is a {@link Scenario} file (binary or CSV) giving
+ * the vehicles instead of drawing {@code cars} random ones.
+ *
+ * Every request and every job gets its own virtual thread. At most
+ * {@code maxRunning} jobs step at once; the rest wait their turn without
+ * holding a carrier thread. A running job yields its carrier after every
+ * tick, so requests and streams stay responsive while every carrier is busy
+ * simulating. The carriers are the JVM's virtual-thread scheduler, sized with
+ * {@code -Djdk.virtualThreadScheduler.parallelism}.
+ *
+ * A finished job is forgotten once it has been finished for the retention
+ * period (ten minutes by default), and a job keeps only its latest
+ * {@value #KEPT_EVENTS} progress events for streams opened late, so a
+ * service that runs for weeks doesn't grow with the jobs it has run.
+ */
+public class SimulationService implements AutoCloseable {
+    static final int KEPT_EVENTS = 1000;
+
+    private final HttpServer server;
+    private final ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore running;
+    private final Map<Long, Job> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final long retentionNanos;
+
+    /** Binds to {@code port} on localhost (0 picks a free one); call {@link #start()} to serve. */
+    public SimulationService(int port, int maxRunning) throws IOException {
+        this(port, maxRunning, Duration.ofMinutes(10));
+    }
+
+    /** Like {@link #SimulationService(int, int)}, forgetting finished jobs after {@code retention}. */
+    public SimulationService(int port, int maxRunning, Duration retention) throws IOException {
+        if (maxRunning < 1) {
+            throw new IllegalArgumentException("maxRunning must be at least 1, was " + maxRunning);
+        }
+        if (retention.isNegative()) {
+            throw new IllegalArgumentException("retention must not be negative, was " + retention);
+        }
+        this.retentionNanos = retention.toNanos();
+        this.running = new Semaphore(maxRunning, true);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(threads);
+        server.createContext("/jobs", this::handle);
+    }
+
+    /** Runs the service until the JVM is stopped: {@code [port [maxRunning]]}. */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int maxRunning = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        SimulationService service = new SimulationService(port, maxRunning).start();
+        System.out.println("Serving simulations on http://localhost:" + service.port() + "/jobs");
+    }
+
+    public SimulationService start() {
+        server.start();
+        return this;
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /** Stops accepting requests and cancels every job that hasn't finished. */
+    @Override
+    public void close() {
+        server.stop(0);
+        for (Job job : jobs.values()) {
+            job.cancelled = true;
+        }
+        threads.shutdown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        expireFinished();
+        try {
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            // path is "", "jobs", then the id and "events" if given
+            if (path.length == 2 && method.equals("POST")) {
+                submit(exchange);
+            } else if (path.length == 2 && method.equals("GET")) {
+                List<String> all = new ArrayList<>();
+                for (Job job : jobs.values()) {
+                    all.add(job.status());
+                }
+                respond(exchange, 200, "[" + String.join(",", all) + "]");
+            } else if (path.length == 3 || path.length == 4 && path[3].equals("events")) {
+                Job job = jobs.get(parseId(path[2]));
+                if (job == null) {
+                    respond(exchange, 404, error("No job " + path[2]));
+                } else if (method.equals("DELETE") && path.length == 3) {
+                    job.cancelled = true;
+                    respond(exchange, 202, job.status());
+                } else if (method.equals("GET") && path.length == 3) {
+                    respond(exchange, 200, job.status());
+                } else if (method.equals("GET")) {
+                    stream(exchange, job);
+                } else {
+                    respond(exchange, 405, error("Method not allowed"));
+                }
+            } else {
+                respond(exchange, 404, error("Not found"));
+            }
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, error(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void expireFinished() {
+        long now = System.nanoTime();
+        jobs.values().removeIf(job -> job.finalStatus != null && now - job.finishedNanos >= retentionNanos);
+    }
+
+    private void submit(HttpExchange exchange) throws IOException {
+        SimConfig config = SimConfig.defaults();
+        double progressEvery = 1;
+        double steadyWindow = 0;
+        double steadyTolerance = 0.02;
+        for (Map.Entry<String, String> param : query(exchange.getRequestURI()).entrySet()) {
+            String value = param.getValue();
+            switch (param.getKey()) {
+                case "lanes" -> config = config.withLanes(Integer.parseInt(value));
+                case "cars" -> config = config.withCars(Integer.parseInt(value));
+                case "dt" -> config = config.withDt(Double.parseDouble(value));
+                case "simTime" -> config = config.withSimTime(Double.parseDouble(value));
+                case "rightLaneEnd" -> config = config.withRightLaneEnd(Double.parseDouble(value));
+                case "carLengthFt" -> config = config.withCarLengthFt(Double.parseDouble(value));
+                case "seed" -> config = config.withSeed(Long.parseLong(value));
+                case "progressEvery" -> progressEvery = Double.parseDouble(value);
+                case "steadyWindow" -> steadyWindow = Double.parseDouble(value);
+                case "steadyTolerance" -> steadyTolerance = Double.parseDouble(value);
+                default -> throw new IllegalArgumentException("Unknown parameter " + param.getKey());
+            }
+        }
+        config = config.withVisualize(false);
+
+        Traffic traffic;
+        try (InputStream body = exchange.getRequestBody()) {
+            byte[] first = body.readNBytes(1);
+            if (first.length == 0) {
+                traffic = Traffic.createSim(config);
+            } else {
+                traffic = Scenario.load(new SequenceInputStream(new ByteArrayInputStream(first), body), config);
+            }
+        } catch (IOException e) {
+            respond(exchange, 400, error("Bad scenario: " + e.getMessage()));
+            return;
+        }
+
+        Job job = new Job(nextId.getAndIncrement(), traffic, Math.max(1, (int) Math.round(progressEvery / config.dt())));
+        if (steadyWindow > 0) {
+            job.steady = traffic.stopWhenSteady(steadyWindow, steadyTolerance);
+        }
+        jobs.put(job.id, job);
+        threads.execute(() -> run(job));
+        exchange.getResponseHeaders().set("Location", "/jobs/" + job.id);
+        respond(exchange, 202, job.status());
+    }
+
+    private void run(Job job) {
+        try {
+            running.acquire();
+        } catch (InterruptedException e) {
+            job.finish("CANCELLED", null);
+            return;
+        }
+        try {
+            Traffic traffic = job.traffic;
+            job.start();
+            // Same number of ticks as Traffic.startSim
+            long steps = (long) (traffic.simTime / traffic.dt) + 1;
+            while (traffic.getTick() < steps && !traffic.isStopped()) {
+                if (job.cancelled) {
+                    job.finish("CANCELLED", null);
+                    return;
+                }
+                traffic.step();
+                if (traffic.getTick() % job.progressEvery == 0 && traffic.getTick() < steps) {
+                    job.publish(job.progress(steps));
+                }
+                Thread.yield();
+            }
+            job.finish("DONE", null);
+        } catch (RuntimeException e) {
+            job.finish("FAILED", e.toString());
+        } finally {
+            running.release();
+        }
+    }
+
+    private static void stream(HttpExchange exchange, Job job) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        long[] next = {0};
+        while (true) {
+            List<String> lines = job.awaitEvents(next);
+            if (lines == null) {
+                return;
+            }
+            for (String line : lines) {
+                out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static long parseId(String id) {
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Map<String, String> query(URI uri) {
+        Map<String, String> params = new LinkedHashMap<>();
+        String query = uri.getQuery();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Parameter " + pair + " has no value");
+            }
+            params.put(pair.substring(0, eq), pair.substring(eq + 1));
+        }
+        return params;
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + quote(message) + "}";
+    }
+
+    private static String quote(String text) {
+        return "\"" + String.valueOf(text).replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    // JSON has no NaN or infinity
+    private static String number(double value) {
+        return Double.isFinite(value) ? Double.toString(value) : "null";
+    }
+
+    /**
+     * One submitted simulation. Its latest events are kept so a stream opened
+     * late replays them; the simulation itself is dropped once it finishes,
+     * keeping only the final status.
+     */
+    private static final class Job {
+        final long id;
+        final int progressEvery;
+        volatile Traffic traffic;
+        volatile boolean cancelled;
+        SteadyStateMonitor steady;
+        private volatile String state = "QUEUED";
+        private volatile String finalStatus;
+        private long finishedNanos;
+        private final List<String> events = new ArrayList<>();
+        private long dropped;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private long startNanos;
+        private long wallMillis;
+
+        Job(long id, Traffic traffic, int progressEvery) {
+            this.id = id;
+            this.traffic = traffic;
+            this.progressEvery = progressEvery;
+        }
+
+        void start() {
+            startNanos = System.nanoTime();
+            state = "RUNNING";
+        }
+
+        String progress(long steps) {
+            Traffic t = traffic;
+            return "{\"id\":" + id + ",\"state\":\"RUNNING\",\"tick\":" + t.getTick()
+                + ",\"time\":" + number(t.getTick() * t.dt)
+                + ",\"progress\":" + number((double) t.getTick() / steps)
+                + ",\"averageSpeed\":" + number(t.getAverageSpeed())
+                + ",\"averageDistance\":" + number(t.getAverageDistance()) + "}";
+        }
+
+        /** Current status; once finished, with the final statistics. */
+        String status() {
+            String done = finalStatus;
+            if (done != null) {
+                return done;
+            }
+            return "{\"id\":" + id + ",\"state\":\"" + state + "\"}";
+        }
+
+        void publish(String event) {
+            lock.lock();
+            try {
+                events.add(event);
+                if (events.size() > KEPT_EVENTS) {
+                    // Drop the older half at once, so trimming stays cheap per event
+                    int drop = events.size() - KEPT_EVENTS / 2;
+                    events.subList(0, drop).clear();
+                    dropped += drop;
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void finish(String result, String failure) {
+            Traffic t = traffic;
+            wallMillis = startNanos == 0 ? 0 : (System.nanoTime() - startNanos) / 1_000_000;
+            StringBuilder json = new StringBuilder("{\"id\":").append(id)
+                .append(",\"state\":\"").append(result).append('"')
+                .append(",\"tick\":").append(t.getTick())
+                .append(",\"averageSpeed\":").append(number(t.getAverageSpeed()))
+                .append(",\"averageDistance\":").append(number(t.getAverageDistance()))
+                .append(",\"carsPerLane\":").append(Arrays.toString(t.carsPerLane()).replace(" ", ""))
+                .append(",\"wallMillis\":").append(wallMillis);
+            if (steady != null) {
+                json.append(",\"steady\":").append(steady.converged())
+                    .append(",\"largestChange\":").append(number(steady.largestChange()))
+                    .append(",\"meanFlow\":").append(number(steady.meanFlow()));
+            }
+            if (failure != null) {
+                json.append(",\"error\":").append(quote(failure));
+            }
+            json.append('}');
+            lock.lock();
+            try {
+                state = result;
+                // Written before finalStatus, whose volatile write publishes it
+                finishedNanos = System.nanoTime();
+                finalStatus = json.toString();
+                events.add(finalStatus);
+                traffic = null;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Waits for the events from number {@code next[0]} on, skipping those no
+         * longer kept, and moves {@code next[0]} past the ones returned; null
+         * once the job is finished and all were seen.
+         */
+        List<String> awaitEvents(long[] next) {
+            lock.lock();
+            try {
+                while (dropped + events.size() == next[0] && finalStatus == null) {
+                    changed.awaitUninterruptibly();
+                }
+                if (dropped + events.size() == next[0]) {
+                    return null;
+                }
+                int from = (int) Math.max(0, next[0] - dropped);
+                next[0] = dropped + events.size();
+                return new ArrayList<>(events.subList(from, events.size()));
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
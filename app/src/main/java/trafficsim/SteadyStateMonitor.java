@@ -0,0 +1,191 @@
+package trafficsim;
+
+import java.util.Arrays;
+
+/**
+ * Ends a run once the traffic has settled, so batch runs don't spend most of
+ * their time on ticks that no longer change the answer. Attach it with
+ * {@link Traffic#stopWhenSteady}.
+ *
+ * It samples the road once per {@link TrafficStats} window: the mean speed
+ * over the window, the flow at a detector and each lane's share of the cars.
+ * The detector sits at the lane end if the road has one, else halfway along
+ * an open road; a closed road without a lane end has no fixed point to
+ * measure flow at, and the flow is left out. After every sample the last
+ * {@code windowSeconds} of samples are compared with the {@code windowSeconds}
+ * before them, and the run is stopped when the means differ by at most
+ * {@code tolerance}: relatively for speed and flow, absolutely for the lane
+ * shares.
+ *
+ * Flow counts whole vehicles per window, so short windows on a light road
+ * are noisy and may never settle within a tight tolerance.
+ */
+public class SteadyStateMonitor implements StepListener {
+    static final int SAMPLES_PER_WINDOW = 10;
+
+    private final double tolerance;
+    private final TrafficStats stats;
+    private final int detector;
+    private final int window;
+    private final int lanes;
+
+    private final double[] speed;
+    private final double[] flow;
+    private final double[][] share;
+    private int samples;
+    private long seenWindows;
+    private double speedSum;
+    private int speedTicks;
+
+    private long lastTick;
+    private long convergedTick = -1;
+    private double largestChange = Double.NaN;
+
+    SteadyStateMonitor(Traffic traffic, double windowSeconds, double tolerance) {
+        if (!(windowSeconds > 0)) {
+            throw new IllegalArgumentException("windowSeconds must be positive, was " + windowSeconds);
+        }
+        if (!(tolerance >= 0)) {
+            throw new IllegalArgumentException("tolerance must not be negative, was " + tolerance);
+        }
+        this.tolerance = tolerance;
+        // Statistics turned on earlier keep their own windows as the samples
+        this.stats = traffic.enableStatistics(Math.max(traffic.dt, windowSeconds / SAMPLES_PER_WINDOW));
+        this.window = Math.max(2, (int) Math.round(windowSeconds / stats.windowSeconds()));
+        double rightLaneEnd = traffic.getConfig().rightLaneEnd();
+        OpenBoundary boundary = traffic.getOpenBoundary();
+        if (rightLaneEnd > 0) {
+            this.detector = stats.addDetector(rightLaneEnd);
+        } else if (boundary != null) {
+            this.detector = stats.addDetector(boundary.roadLengthFt() / 2);
+        } else {
+            this.detector = -1;
+        }
+        this.lanes = traffic.getNumLanes();
+        this.speed = new double[2 * window];
+        this.flow = new double[2 * window];
+        this.share = new double[2 * window][lanes];
+        this.seenWindows = stats.windows();
+        this.lastTick = traffic.getTick();
+    }
+
+    @Override
+    public void afterStep(Traffic traffic, long tick) {
+        lastTick = tick;
+        if (convergedTick >= 0) {
+            return;
+        }
+        if (!Double.isNaN(stats.averageSpeed())) {
+            speedSum += stats.averageSpeed();
+            speedTicks++;
+        }
+        if (stats.windows() == seenWindows) {
+            return;
+        }
+        seenWindows = stats.windows();
+
+        int slot = samples % speed.length;
+        speed[slot] = speedSum / speedTicks;
+        speedSum = 0;
+        speedTicks = 0;
+        flow[slot] = detector < 0 ? 0 : stats.detectorSeries(detector).get(stats.detectorSeries(detector).size() - 1).flow(0);
+        int[] cars = traffic.carsPerLane();
+        int total = Arrays.stream(cars).sum();
+        for (int l = 0; l < lanes; l++) {
+            share[slot][l] = total == 0 ? 0 : (double) cars[l] / total;
+        }
+        samples++;
+
+        if (samples >= 2 * window) {
+            largestChange = change();
+            if (largestChange <= tolerance) {
+                convergedTick = tick;
+                traffic.stop();
+            }
+        }
+    }
+
+    /** The largest difference between the means of the last window of samples and the one before. */
+    private double change() {
+        double largest = relative(mean(speed, 0), mean(speed, window));
+        if (detector >= 0) {
+            largest = Math.max(largest, relative(mean(flow, 0), mean(flow, window)));
+        }
+        for (int l = 0; l < lanes; l++) {
+            largest = Math.max(largest, Math.abs(meanShare(l, 0) - meanShare(l, window)));
+        }
+        return largest;
+    }
+
+    private static double relative(double recent, double before) {
+        if (recent == before) {
+            return 0;
+        }
+        return Math.abs(recent - before) / Math.max(Math.abs(recent), Math.abs(before));
+    }
+
+    /** Mean of the window of samples ending {@code back} samples before the last. */
+    private double mean(double[] values, int back) {
+        double sum = 0;
+        for (int i = 1; i <= window; i++) {
+            sum += values[Math.floorMod(samples - back - i, values.length)];
+        }
+        return sum / window;
+    }
+
+    private double meanShare(int lane, int back) {
+        double sum = 0;
+        for (int i = 1; i <= window; i++) {
+            sum += share[Math.floorMod(samples - back - i, share.length)][lane];
+        }
+        return sum / window;
+    }
+
+    /** Whether the traffic settled and the run was stopped. */
+    public boolean converged() {
+        return convergedTick >= 0;
+    }
+
+    /** The tick the traffic was found settled at, or -1. */
+    public long convergedTick() {
+        return convergedTick;
+    }
+
+    /** The last tick this monitor saw, which is the ticks a run stopped by it used. */
+    public long ticksUsed() {
+        return lastTick;
+    }
+
+    /** The largest change at the last comparison (see the class comment); NaN before there were two windows. */
+    public double largestChange() {
+        return largestChange;
+    }
+
+    /** Mean speed in mph over the last window of samples; NaN before there was one. */
+    public double meanSpeed() {
+        return samples < window ? Double.NaN : mean(speed, 0);
+    }
+
+    /** Mean flow at the detector in vehicles per hour over the last window; NaN without a detector or a window. */
+    public double meanFlow() {
+        return samples < window || detector < 0 ? Double.NaN : mean(flow, 0);
+    }
+
+    /** Each lane's mean share of the cars over the last window, lane 1 first. */
+    public double[] laneShares() {
+        double[] shares = new double[lanes];
+        if (samples >= window) {
+            for (int l = 0; l < lanes; l++) {
+                shares[l] = meanShare(l, 0);
+            }
+        }
+        return shares;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s after %d ticks: speed %.1f mph, flow %.0f veh/h, lane shares %s, change %.4f",
+                converged() ? "steady" : "not steady", ticksUsed(), meanSpeed(), meanFlow(),
+                Arrays.toString(laneShares()), largestChange);
+    }
+}
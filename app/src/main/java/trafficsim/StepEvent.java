@@ -0,0 +1,33 @@
+package trafficsim;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** JFR event covering one simulation tick, emitted while metrics are enabled. */
+@Name("trafficsim.Step")
+@Label("Simulation Step")
+@Category("TrafficSim")
+@Description("One tick of Traffic.step() with the events counted during it")
+@StackTrace(false)
+public class StepEvent extends jdk.jfr.Event {
+    @Label("Tick")
+    public long tick;
+
+    @Label("Vehicles")
+    public int vehicles;
+
+    @Label("Lane Changes")
+    public long laneChanges;
+
+    @Label("Lane Change Evaluations")
+    public long laneChangeEvaluations;
+
+    @Label("Collision Clamps")
+    public long collisionClamps;
+
+    @Label("Merge Slowdowns")
+    public long mergeSlowdowns;
+}
@@ -0,0 +1,9 @@
+package trafficsim;
+
+/**
+ * Called by {@link Traffic} after every tick. Listeners run on the simulation
+ * thread, so they should hand anything slow off to another thread.
+ */
+public interface StepListener {
+    void afterStep(Traffic traffic, long tick);
+}
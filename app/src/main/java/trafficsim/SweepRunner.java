@@ -0,0 +1,70 @@
+package trafficsim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/**
+ * Runs many independent simulations concurrently on a work-stealing pool and
+ * streams each run's summary as soon as it finishes. Every run carries its own
+ * {@link SimConfig} and seed, so any result can be reproduced on its own.
+ */
+public class SweepRunner {
+    private final ForkJoinPool pool;
+
+    public SweepRunner(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /** Summary of one finished run. */
+    public record Result(SimConfig config, double averageDistance, double averageSpeed, int[] carsPerLane) {
+    }
+
+    /**
+     * Every combination of the given lane counts, car counts and right-lane end
+     * positions, {@code repeats} times each. Seeds are split off {@code base}'s
+     * seed in grid order, so the same arguments always give the same scenarios.
+     */
+    public static List<SimConfig> grid(SimConfig base, int[] lanes, int[] cars, double[] rightLaneEnds, int repeats) {
+        SimRandom seeds = new SimRandom(base.seed());
+        List<SimConfig> scenarios = new ArrayList<>();
+        for (int l : lanes) {
+            for (int c : cars) {
+                for (double end : rightLaneEnds) {
+                    for (int r = 0; r < repeats; r++) {
+                        scenarios.add(base.withLanes(l).withCars(c).withRightLaneEnd(end).withSeed(seeds.nextLong()).withVisualize(false));
+                    }
+                }
+            }
+        }
+        return scenarios;
+    }
+
+    /**
+     * Runs every scenario and passes each result to {@code results} in
+     * completion order. Calls to {@code results} never overlap. Returns once
+     * every run has finished; the first failure is rethrown.
+     */
+    public void run(List<SimConfig> scenarios, Consumer<Result> results) {
+        Object lock = new Object();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(scenarios.size());
+        for (SimConfig config : scenarios) {
+            tasks.add(pool.submit(() -> {
+                Result result = runOne(config);
+                synchronized (lock) {
+                    results.accept(result);
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+    }
+
+    public static Result runOne(SimConfig config) {
+        Traffic t = Traffic.createSim(config).startSim();
+        return new Result(config, t.getAverageDistance(), t.getAverageSpeed(), t.carsPerLane());
+    }
+}
@@ -0,0 +1,356 @@
+package trafficsim;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Synchronous (double-buffered) stepping: every vehicle decides and moves from
+ * the state at the start of the tick, so the per-vehicle work can be spread
+ * over a {@link ForkJoinPool}. The result does not depend on the number of
+ * threads.
+ *
+ * A tick runs in phases, each finishing before the next starts:
+ * <ol>
+ * <li>every vehicle picks a lane from the old state;</li>
+ * <li>per target lane, competing lane changes are resolved front to back so
+ *     two vehicles never take the same gap;</li>
+ * <li>accepted lane changes are applied to the store and index;</li>
+ * <li>every vehicle computes its new speed and position into a back buffer;</li>
+ * <li>the back buffer is copied into the store and each lane is re-sorted.</li>
+ * </ol>
+ */
+public class SynchronousStepper {
+    private static final int CHUNK = 1024;
+
+    private static final int DECIDE = 0;
+    private static final int RESOLVE = 1;
+    private static final int ADVANCE = 2;
+    private static final int COMMIT = 3;
+    private static final int RESORT = 4;
+    private static final int ADVANCE_BATCHED = 5;
+
+    private final SimEngine engine;
+    private final VehicleStore store;
+    private final LaneIndex index;
+    private final ForkJoinPool pool;
+    private final int lanes;
+
+    private final int[] target;
+    private final double[] nextSpeed;
+    private final double[] nextPosition;
+    private final SimEngine.MotionSink backBuffer;
+    private final int[][] accepted;
+    private final int[] acceptedCount;
+    private final Phase decide;
+    private final Phase resolve;
+    private final Phase advance;
+    private final Phase commit;
+    private final Phase resort;
+    private final KinematicsKernel[] kernels;
+    private int[][] batchIds;
+    private final TypedVehicleStore typed;
+    private int[][] sortedIds;
+    private final int[][] typeEnds;
+    private double dt;
+
+    /** {@code pool} may be null to run every phase on the calling thread. */
+    public SynchronousStepper(SimEngine engine, ForkJoinPool pool) {
+        this(engine, pool, false);
+    }
+
+    /**
+     * With {@code vectorKernel}, the advance phase gathers each chunk of cars
+     * and their leaders into a {@link KinematicsKernel} and computes their
+     * speeds and moves together (on SIMD lanes when the Vector API is
+     * available). Cars near the lane end still go through the scalar code.
+     * With a {@link TypedVehicleStore} each chunk is grouped by type and the
+     * parameters are loaded once per type rather than per car. Results are
+     * the same either way.
+     */
+    public SynchronousStepper(SimEngine engine, ForkJoinPool pool, boolean vectorKernel) {
+        this.engine = engine;
+        this.store = engine.store();
+        this.index = engine.laneIndex();
+        this.pool = pool;
+        this.lanes = engine.getNumLanes();
+        int n = store.size();
+        this.target = new int[n];
+        this.nextSpeed = new double[n];
+        this.nextPosition = new double[n];
+        this.backBuffer = (id, speedMPH, position) -> {
+            nextSpeed[id] = speedMPH;
+            nextPosition[id] = position;
+        };
+        // Few cars change into a lane in any one tick; resolve grows a lane's list if more do
+        this.accepted = new int[lanes][16];
+        this.acceptedCount = new int[lanes];
+        this.decide = new Phase(DECIDE, 0, n);
+        this.resolve = new Phase(RESOLVE, 1, lanes + 1);
+        int chunks = (n + CHUNK - 1) / CHUNK;
+        this.kernels = vectorKernel ? new KinematicsKernel[chunks] : null;
+        this.batchIds = vectorKernel ? new int[chunks][] : null;
+        this.typed = vectorKernel && store instanceof TypedVehicleStore t ? t : null;
+        this.sortedIds = typed != null ? new int[chunks][] : null;
+        this.typeEnds = typed != null ? new int[chunks][] : null;
+        for (int c = 0; vectorKernel && c < chunks; c++) {
+            kernels[c] = new KinematicsKernel(CHUNK, true);
+            batchIds[c] = new int[CHUNK];
+            if (typed != null) {
+                sortedIds[c] = new int[CHUNK];
+                typeEnds[c] = new int[typed.typeCount()];
+            }
+        }
+        this.advance = vectorKernel ? new Phase(ADVANCE_BATCHED, 0, chunks) : new Phase(ADVANCE, 0, n);
+        this.commit = new Phase(COMMIT, 0, n);
+        this.resort = new Phase(RESORT, 1, lanes + 1);
+    }
+
+    /** Whether the advance phase runs through {@link KinematicsKernel}s. */
+    boolean vectorKernel() {
+        return kernels != null;
+    }
+
+    public void step(double dt) {
+        this.dt = dt;
+        SimMetrics metrics = engine.metrics();
+        if (metrics == null) {
+            run(decide);
+            run(resolve);
+            applyLaneChanges();
+            run(advance);
+            recordMoves();
+            run(commit);
+            run(resort);
+            return;
+        }
+        long t0 = System.nanoTime();
+        run(decide);
+        long t1 = System.nanoTime();
+        run(resolve);
+        long t2 = System.nanoTime();
+        applyLaneChanges();
+        long t3 = System.nanoTime();
+        run(advance);
+        recordMoves();
+        long t4 = System.nanoTime();
+        run(commit);
+        long t5 = System.nanoTime();
+        run(resort);
+        long t6 = System.nanoTime();
+        metrics.record(SimMetrics.Phase.SYNC_DECIDE, t1 - t0);
+        metrics.record(SimMetrics.Phase.SYNC_RESOLVE, t2 - t1);
+        metrics.record(SimMetrics.Phase.SYNC_APPLY, t3 - t2);
+        metrics.record(SimMetrics.Phase.SYNC_ADVANCE, t4 - t3);
+        metrics.record(SimMetrics.Phase.SYNC_COMMIT, t5 - t4);
+        metrics.record(SimMetrics.Phase.SYNC_RESORT, t6 - t5);
+    }
+
+    // The top-level phases are built once; on a single thread they run without allocating
+    private void run(Phase phase) {
+        if (pool == null) {
+            phase.compute();
+        } else {
+            phase.reinitialize();
+            pool.invoke(phase);
+        }
+    }
+
+    /**
+     * Walks the vehicles that want {@code lane} from both neighbouring lanes,
+     * front to back (the last in tie order first at equal positions, as within
+     * a lane), and accepts each one that keeps half its desired gap plus car
+     * lengths to every claim already accepted.
+     */
+    private void resolve(int lane) {
+        int l = lane - 1;
+        acceptedCount[l] = 0;
+        double maxDesired = 0;
+        int left = lane - 1;
+        int right = lane + 1;
+        int leftSlot = left >= 1 ? index.size(left) - 1 : -1;
+        int rightSlot = right <= lanes ? index.size(right) - 1 : -1;
+
+        while (leftSlot >= 0 || rightSlot >= 0) {
+            int id;
+            if (rightSlot < 0 || (leftSlot >= 0 && frontOf(index.carAt(left, leftSlot), index.carAt(right, rightSlot)))) {
+                id = index.carAt(left, leftSlot--);
+            } else {
+                id = index.carAt(right, rightSlot--);
+            }
+            if (target[id] != lane) {
+                continue;
+            }
+
+            double pos = store.position(id);
+            double length = store.length(id);
+            double desired = store.desiredGap(id);
+            double reach = (length + index.maxLength()) / 2 + Math.max(desired, maxDesired) / 2;
+            boolean clear = true;
+            for (int k = acceptedCount[l] - 1; k >= 0; k--) {
+                int other = accepted[l][k];
+                double dist = store.position(other) - pos;
+                if (dist >= reach) {
+                    break;
+                }
+                double needed = (length + store.length(other)) / 2 + Math.max(desired, store.desiredGap(other)) / 2;
+                if (dist < needed) {
+                    clear = false;
+                    break;
+                }
+            }
+            if (clear) {
+                if (acceptedCount[l] == accepted[l].length) {
+                    accepted[l] = Arrays.copyOf(accepted[l], accepted[l].length * 2);
+                }
+                accepted[l][acceptedCount[l]++] = id;
+                maxDesired = Math.max(maxDesired, desired);
+            } else if (engine.metrics() != null) {
+                engine.metrics().laneChangeConflict();
+            }
+        }
+    }
+
+    private boolean frontOf(int a, int b) {
+        double pa = store.position(a);
+        double pb = store.position(b);
+        return pa > pb || (pa == pb && index.precedes(b, a));
+    }
+
+    private void applyLaneChanges() {
+        for (int lane = 1; lane <= lanes; lane++) {
+            for (int k = 0; k < acceptedCount[lane - 1]; k++) {
+                int id = accepted[lane - 1][k];
+                store.setLane(id, lane);
+                index.update(id);
+            }
+            if (engine.metrics() != null) {
+                engine.metrics().laneChanged(acceptedCount[lane - 1]);
+            }
+        }
+    }
+
+    // Statistics aren't thread-safe, so the moves are reported from here rather than the phases
+    private void recordMoves() {
+        TrafficStats stats = engine.stats();
+        if (stats == null) {
+            return;
+        }
+        for (int id = 0; id < store.size(); id++) {
+            if (store.lane(id) > 0) {
+                stats.moved(id, store.lane(id), store.position(id), nextPosition[id], store.speed(id), nextSpeed[id], dt);
+            }
+        }
+    }
+
+    /** Advances the cars of one chunk, all but those near the lane end through the kernel. */
+    private void advanceBatch(int chunk) {
+        KinematicsKernel kernel = kernels[chunk];
+        int[] ids = batchIds[chunk];
+        int to = Math.min(store.size(), (chunk + 1) * CHUNK);
+        int count = 0;
+        for (int id = chunk * CHUNK; id < to; id++) {
+            if (engine.nearLaneEnd(id)) {
+                engine.advance(id, leaderOf(id), dt, backBuffer);
+            } else {
+                ids[count++] = id;
+            }
+        }
+        if (typed != null) {
+            ids = loadByType(chunk, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                kernel.load(i, store, ids[i], leaderOf(ids[i]));
+            }
+        }
+        kernel.compute(count, dt);
+        for (int i = 0; i < count; i++) {
+            engine.finishMove(ids[i], kernel.newSpeed[i], kernel.movement[i], dt, backBuffer);
+        }
+    }
+
+    /**
+     * Loads the first {@code count} cars of a chunk into its kernel grouped by
+     * type (a counting sort on the type id) and returns them in slot order.
+     * Cars move from the start-of-tick state, so their order doesn't matter.
+     */
+    private int[] loadByType(int chunk, int count) {
+        KinematicsKernel kernel = kernels[chunk];
+        int[] ids = batchIds[chunk];
+        int[] sorted = sortedIds[chunk];
+        int types = typed.typeCount();
+        if (typeEnds[chunk].length < types) {
+            typeEnds[chunk] = new int[types];
+        }
+        int[] ends = typeEnds[chunk];
+        Arrays.fill(ends, 0, types, 0);
+        for (int i = 0; i < count; i++) {
+            ends[typed.typeOf(ids[i])]++;
+        }
+        int start = 0;
+        for (int t = 0; t < types; t++) {
+            int n = ends[t];
+            ends[t] = start;
+            start += n;
+        }
+        for (int i = 0; i < count; i++) {
+            sorted[ends[typed.typeOf(ids[i])]++] = ids[i];
+        }
+        // ends[t] is now where type t's run stops
+        start = 0;
+        for (int t = 0; t < types; t++) {
+            if (ends[t] > start) {
+                kernel.loadParameters(start, ends[t], store, sorted[start]);
+            }
+            start = ends[t];
+        }
+        for (int i = 0; i < count; i++) {
+            kernel.loadMotion(i, store, sorted[i], leaderOf(sorted[i]));
+        }
+        sortedIds[chunk] = ids;
+        batchIds[chunk] = sorted;
+        return sorted;
+    }
+
+    private int leaderOf(int id) {
+        int lane = store.lane(id);
+        int s = index.slotOf(id) + 1;
+        return s < index.size(lane) ? index.carAt(lane, s) : -1;
+    }
+
+    @SuppressWarnings("serial")
+    private class Phase extends RecursiveAction {
+        private final int kind;
+        private final int from;
+        private final int to;
+
+        Phase(int kind, int from, int to) {
+            this.kind = kind;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            // Lanes and kernel chunks are already coarse enough to run one per task
+            boolean coarse = kind == RESOLVE || kind == RESORT || kind == ADVANCE_BATCHED;
+            int grain = coarse ? 1 : CHUNK;
+            if (pool != null && to - from > grain) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Phase(kind, from, mid), new Phase(kind, mid, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                switch (kind) {
+                    case DECIDE -> target[i] = engine.decideLane(i);
+                    case RESOLVE -> resolve(i);
+                    case ADVANCE -> engine.advance(i, leaderOf(i), dt, backBuffer);
+                    case ADVANCE_BATCHED -> advanceBatch(i);
+                    case COMMIT -> store.setMotion(i, nextSpeed[i], nextPosition[i]);
+                    case RESORT -> index.resortLane(i);
+                    default -> throw new IllegalStateException("Unknown phase " + kind);
+                }
+            }
+        }
+    }
+}
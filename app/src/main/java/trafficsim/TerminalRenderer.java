@@ -0,0 +1,224 @@
+package trafficsim;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Draws the road to the terminal from its own thread so rendering never sets
+ * the pace of the simulation.
+ *
+ * The simulation thread calls {@link #offer} every tick. When a frame is due
+ * and the renderer has finished the previous one, the road is rasterized into
+ * a small cell grid that the renderer then owns until it has drawn it; if the
+ * renderer is still busy the frame is dropped. Frames are built in one reused
+ * byte buffer and written with a single call.
+ */
+public final class TerminalRenderer implements AutoCloseable {
+    private static final int SCREEN_WIDTH = 92; // characters wide
+    private static final double WORLD_WIDTH = 15000; // feet represented across screen
+
+    private static final byte EMPTY = 0;
+    private static final byte SLOW = 1;
+    private static final byte MEDIUM = 2;
+    private static final byte FAST = 3;
+    private static final byte BARRIER = 4;
+
+    private static final byte[][] SYMBOLS = {
+        bytes(" "),
+        bytes("\u001B[31m>\u001B[0m"), // red for slow
+        bytes("\u001B[33m>\u001B[0m"), // yellow for medium
+        bytes("\u001B[32m>\u001B[0m"), // green for fast
+        bytes("|"), // barrier on bottom-most lane
+    };
+    private static final byte[] HOME = bytes("\033[H");
+    private static final byte[] TIME = bytes("Time: ");
+    private static final byte[] LANE = bytes("Lane ");
+    private static final byte[] LANE_SEP = bytes(": ");
+
+    private final int lanes;
+    private final double rightLaneEnd;
+    private final long frameIntervalNanos;
+    private final PrintStream out;
+    private final Thread thread;
+
+    // Written by the simulation thread only while frameReady is false, read by the renderer only while it is true
+    private final byte[][] cells;
+    private double frameTime;
+    private final AtomicBoolean frameReady = new AtomicBoolean();
+
+    private volatile boolean running = true;
+    private long nextFrameNanos;
+    private long framesDropped;
+    private volatile long framesDrawn;
+
+    private byte[] buffer;
+    private int length;
+
+    public TerminalRenderer(int lanes, double rightLaneEnd, double frameRate, PrintStream out) {
+        if (!(frameRate > 0)) {
+            throw new IllegalArgumentException("frameRate must be positive, was " + frameRate);
+        }
+        this.lanes = lanes;
+        this.rightLaneEnd = rightLaneEnd;
+        this.frameIntervalNanos = (long) (1_000_000_000L / frameRate);
+        this.out = out;
+        this.cells = new byte[lanes][SCREEN_WIDTH];
+        // Worst case every cell is a colored car
+        this.buffer = new byte[64 + lanes * (16 + SCREEN_WIDTH * SYMBOLS[FAST].length)];
+        this.thread = new Thread(this::drawLoop, "traffic-renderer");
+        this.thread.setDaemon(true);
+    }
+
+    public TerminalRenderer start() {
+        nextFrameNanos = System.nanoTime();
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Captures a frame if one is due and the renderer is free; never blocks.
+     * Returns whether the frame was taken.
+     */
+    public boolean offer(VehicleStore store, double time) {
+        long now = System.nanoTime();
+        if (now - nextFrameNanos < 0) {
+            return false;
+        }
+        if (frameReady.get()) {
+            framesDropped++;
+            return false;
+        }
+        capture(store, time);
+        nextFrameNanos = now + frameIntervalNanos;
+        return true;
+    }
+
+    /** Waits for the renderer to go idle, then draws the given state and returns once it is on screen. */
+    public void showFinal(VehicleStore store, double time) {
+        awaitIdle();
+        capture(store, time);
+        awaitIdle();
+    }
+
+    public long framesDrawn() {
+        return framesDrawn;
+    }
+
+    public long framesDropped() {
+        return framesDropped;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void awaitIdle() {
+        while (frameReady.get() && thread.isAlive()) {
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    private void capture(VehicleStore store, double time) {
+        for (byte[] row : cells) {
+            Arrays.fill(row, EMPTY);
+        }
+        for (int i = 0; i < store.size(); i++) {
+            int laneIndex = store.lane(i) - 1;
+            if (laneIndex < 0) {
+                continue; // off the road
+            }
+            int pos = (int) ((store.position(i) / WORLD_WIDTH) * SCREEN_WIDTH);
+            pos = Math.min(SCREEN_WIDTH - 1, Math.max(0, pos));
+            double speed = store.speed(i);
+            cells[laneIndex][pos] = speed < 45 ? SLOW : speed < 65 ? MEDIUM : FAST;
+        }
+
+        int endCol = (int) ((rightLaneEnd / WORLD_WIDTH) * SCREEN_WIDTH);
+        if (endCol >= 0 && endCol < SCREEN_WIDTH) {
+            cells[lanes - 1][endCol] = BARRIER;
+        }
+        frameTime = time;
+        frameReady.set(true);
+        LockSupport.unpark(thread);
+    }
+
+    private void drawLoop() {
+        while (running || frameReady.get()) {
+            if (!frameReady.get()) {
+                LockSupport.parkNanos(this, frameIntervalNanos);
+                continue;
+            }
+            draw();
+            out.write(buffer, 0, length);
+            out.flush();
+            framesDrawn++;
+            frameReady.set(false);
+        }
+    }
+
+    private void draw() {
+        length = 0;
+        append(HOME);
+        append(TIME);
+        appendTime(frameTime);
+        appendByte('\n');
+        for (int i = 0; i < lanes; i++) {
+            append(LANE);
+            appendLong(i + 1);
+            append(LANE_SEP);
+            for (int j = 0; j < SCREEN_WIDTH; j++) {
+                append(SYMBOLS[cells[i][j]]);
+            }
+            appendByte('\n');
+        }
+        appendByte('\n');
+    }
+
+    // Two decimals, as the old DecimalFormat("0.00") printed, without allocating
+    private void appendTime(double time) {
+        long hundredths = Math.round(time * 100);
+        appendLong(hundredths / 100);
+        appendByte('.');
+        long frac = hundredths % 100;
+        appendByte('0' + (int) (frac / 10));
+        appendByte('0' + (int) (frac % 10));
+    }
+
+    private void appendLong(long value) {
+        if (value >= 10) {
+            appendLong(value / 10);
+        }
+        appendByte('0' + (int) (value % 10));
+    }
+
+    private void append(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void appendByte(int b) {
+        ensure(1);
+        buffer[length++] = (byte) b;
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
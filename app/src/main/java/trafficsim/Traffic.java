@@ -1,93 +1,312 @@
 package trafficsim;
 
-import java.text.DecimalFormat;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
 
 public class Traffic {
-    private DecimalFormat df = new DecimalFormat("0.00");
     public int lanes;
-    public Car[] cars;
     public double dt;
     public double simTime;
     public boolean visualize;
+    private final SimConfig config;
+    private final SimRandom random;
+    private VehicleStore store;
+    private SimEngine engine;
+    private SynchronousStepper synchronous;
+    private OpenBoundary boundary;
+    private CellularEngine cellular;
+    private final List<StepListener> listeners = new ArrayList<>();
+    private long tick;
+    private VehicleType[] fleet;
+    private volatile boolean stopped;
+
+    private Traffic(SimConfig config, List<Car> carInput, VehicleStore store, VehicleType[] fleet) {
+        this.config = config;
+        this.random = new SimRandom(config.seed());
+        this.lanes = config.lanes();
+        this.dt = config.dt();
+        this.visualize = config.visualize();
+        this.simTime = config.simTime();
+        this.store = store;
+        this.fleet = fleet;
+        if (carInput == null) {
+            initializeCars(config.cars());
+        } else {
+            initializeCars(carInput);
+        }
+        this.engine = new SimEngine(store, config);
+    }
 
-    private Traffic(int lanes, int carCount, double dt, boolean visualize, double simTime) {
-        this.lanes = lanes;
-        this.cars = new Car[carCount];
-        this.dt = dt;
-        this.visualize = visualize;
-        this.simTime = simTime;
-        initializeCars(carCount);
+    private Traffic(SimConfig config, VehicleStore store, SimRandom random, long tick) {
+        this.config = config;
+        this.random = random;
+        this.lanes = config.lanes();
+        this.dt = config.dt();
+        this.visualize = config.visualize();
+        this.simTime = config.simTime();
+        this.store = store;
+        this.tick = tick;
+        this.engine = new SimEngine(store, config);
     }
 
-    private Traffic(int lanes, List<Car> carInput, double dt, boolean visualize, double simTime) {
-        this.lanes = lanes;
-        this.cars = new Car[carInput.size()];
-        this.dt = dt;
-        this.visualize = visualize;
-        this.simTime = simTime;
-        initializeCars(carInput);
+    /** Rebuilds a simulation from saved state; used by {@link Checkpoint}. */
+    static Traffic restore(SimConfig config, VehicleStore store, SimRandom random, long tick) {
+        return new Traffic(config, store, random, tick);
     }
 
     private void initializeCars(int carCount) {
+        if (fleet == null) {
+            drawPopulation(config.withCars(carCount), random, (id, car) -> store.addCopy(car, 0));
+            return;
+        }
         Map<Integer, Double> laneLastPosition = new HashMap<>();
+        double carLengthFt = config.carLengthFt();
 
         for (int i = 0; i < carCount; i++) {
-            int lane = (int) (Math.random() * lanes + 1);
-            double maxSpeedMPH = (40 + Math.random() * 40);
-            double maxAccel = 6.7 + Math.random() * 3.5;
-            double desiredDistance = 5 + Math.random() * 30;
-            double kP = Math.random() / 2.0 + 0.3;
-            double kD = Math.random() / 20.0;
-
-            double position = laneLastPosition.getOrDefault(lane, 0.0) + Constants.carLengthFt/2;
-            position += desiredDistance + 30 + Math.random() * 20;
+            int lane = (int) (random.nextDouble() * lanes + 1);
+            int id = drawCar(-1, lane);
 
-            Car car = new Car(lane, maxSpeedMPH, maxAccel, desiredDistance, kP, kD);
-            car.assignTraffic(this);
-            car.setDistanceFromStart(position);
+            double position = laneLastPosition.getOrDefault(lane, 0.0) + carLengthFt/2;
+            position += store.desiredGap(id) + 30 + random.nextDouble() * 20;
+            store.setPosition(id, position);
 
-            cars[i] = car;
             laneLastPosition.put(lane, position);
         }
     }
 
+    /** Receives the cars of a drawn population one at a time; see {@link #drawPopulation}. */
+    interface PopulationSink {
+        /** Car {@code id} is row 0 of {@code car}, which is overwritten by the next one. */
+        void car(int id, VehicleStore car);
+    }
+
+    /**
+     * Draws the random starting population of {@code createSim(config)} from
+     * {@code random} in id order, handing each car to {@code sink} without
+     * keeping it, so a shard worker can keep just the cars on its stretch.
+     */
+    static void drawPopulation(SimConfig config, SimRandom random, PopulationSink sink) {
+        VehicleStore car = new HeapVehicleStore(1);
+        double[] laneLastPosition = new double[config.lanes() + 1];
+        for (int i = 0; i < config.cars(); i++) {
+            int lane = (int) (random.nextDouble() * config.lanes() + 1);
+            car.clear();
+            drawCar(random, config.carLengthFt(), car, -1, lane);
+
+            double position = laneLastPosition[lane] + config.carLengthFt()/2;
+            position += car.desiredGap(0) + 30 + random.nextDouble() * 20;
+            car.setPosition(0, position);
+
+            laneLastPosition[lane] = position;
+            sink.car(i, car);
+        }
+    }
+
+    /**
+     * Draws a random car's parameters, or its type from the fleet, into
+     * vehicle {@code id}, or into a new vehicle if {@code id} is -1, at
+     * position 0. Returns its id.
+     */
+    int drawCar(int id, int lane){
+        if (fleet != null) {
+            VehicleType type = fleet[(int) (random.nextDouble() * fleet.length)];
+            if (id < 0) {
+                return store.add(lane, type);
+            }
+            store.reuse(id, lane, type);
+            return id;
+        }
+        return drawCar(random, config.carLengthFt(), store, id, lane);
+    }
+
+    private static int drawCar(SimRandom random, double carLengthFt, VehicleStore store, int id, int lane){
+        double maxSpeedMPH = (40 + random.nextDouble() * 40);
+        double maxAccel = 6.7 + random.nextDouble() * 3.5;
+        double desiredDistance = 5 + random.nextDouble() * 30;
+        double kP = random.nextDouble() / 2.0 + 0.3;
+        double kD = random.nextDouble() / 20.0;
+        if (id < 0) {
+            return store.add(lane, maxSpeedMPH, maxAccel, desiredDistance, kP, kD, carLengthFt);
+        }
+        store.reuse(id, lane, maxSpeedMPH, maxAccel, desiredDistance, kP, kD, carLengthFt);
+        return id;
+    }
+
     private void initializeCars(List<Car> carInput) {
         Map<Integer, Double> laneLastPosition = new HashMap<>();
-        int i = 0;
         for (Car car : carInput) {
-            car.assignTraffic(this);
-            int lane = (int) (Math.random() * lanes + 1);
+            VehicleStore from = car.store();
+            int fromId = car.getId();
+            double lengthFt = car.hasOwnLength() ? from.length(fromId) : config.carLengthFt();
+            int id = store.add(from.lane(fromId), from.maxSpeed(fromId), from.maxAccel(fromId), from.desiredGap(fromId),
+                    from.kP(fromId), from.kD(fromId), lengthFt);
+            store.setMotion(id, from.speed(fromId), from.position(fromId));
+            car.assignTraffic(this, id);
+            int lane = (int) (random.nextDouble() * lanes + 1);
             car.setLane(lane);
 
             double position = car.getDistanceFromStart();
 
             if (position == 0) {
-                position = laneLastPosition.getOrDefault(lane, 0.0) + Constants.carLengthFt / 2;
-                position += car.getDesiredDistance() + 30 + Math.random() * 20;
+                position = laneLastPosition.getOrDefault(lane, 0.0) + config.carLengthFt() / 2;
+                position += car.getDesiredDistance() + 30 + random.nextDouble() * 20;
                 car.setDistanceFromStart(position);
             }
 
-            cars[i] = car;
             laneLastPosition.put(lane, position);
-            i++;
         }
     }
 
     public static Traffic createSim(int lanes, int cars, double dt, double simTime, boolean visualize) {
-        Traffic t = new Traffic(lanes, cars, dt, visualize, simTime);
-        
-        return t;
+        return createSim(SimConfig.defaults().withLanes(lanes).withCars(cars).withDt(dt).withSimTime(simTime).withVisualize(visualize));
     }
 
     public static Traffic createSim(int lanes, List<Car> cars, double dt, double simTime, boolean visualize) {
-        Traffic t = new Traffic(lanes, cars, dt, visualize, simTime);
-        return t;
+        return createSim(SimConfig.defaults().withLanes(lanes).withDt(dt).withSimTime(simTime).withVisualize(visualize), cars);
+    }
+
+    /** Creates a simulation of {@code config.cars()} randomly placed cars, drawn from the config's seed. */
+    public static Traffic createSim(SimConfig config) {
+        return new Traffic(config, null, new HeapVehicleStore(config.cars()), null);
+    }
+
+    /**
+     * Like {@link #createSim(SimConfig)}, with the vehicles kept off the heap
+     * in {@code stateFile}, which is replaced; see {@link MappedVehicleStore}.
+     * Other processes can follow the run with {@link MappedVehicleStore#openReadOnly}.
+     */
+    public static Traffic createSim(SimConfig config, Path stateFile) throws IOException {
+        return new Traffic(config, null, MappedVehicleStore.create(stateFile, config.cars()), null);
+    }
+
+    /**
+     * Creates a simulation of the given cars; only their lanes (and unset
+     * positions) are drawn from the seed. Cars built without a length get
+     * {@link SimConfig#carLengthFt()}. Each car becomes a view of its
+     * vehicle in the simulation, so pass cars made for this run, not ones
+     * shared with another.
+     */
+    public static Traffic createSim(SimConfig config, List<Car> cars) {
+        return new Traffic(config, cars, new HeapVehicleStore(cars.size()), null);
+    }
+
+    /**
+     * Creates a simulation of {@code config.cars()} randomly placed cars of
+     * types drawn evenly from {@code fleet} (list a type twice to draw it
+     * twice as often), kept in a {@link TypedVehicleStore}. Arrivals on an
+     * open road are drawn from the fleet too.
+     */
+    public static Traffic createSim(SimConfig config, VehicleType... fleet) {
+        if (fleet.length == 0) {
+            throw new IllegalArgumentException("A fleet needs at least one vehicle type");
+        }
+        return new Traffic(config, null, new TypedVehicleStore(config.cars()), fleet.clone());
+    }
+
+    public SimConfig getConfig(){
+        return config;
+    }
+
+    SimRandom random(){
+        return random;
+    }
+
+    /**
+     * Switches to synchronous stepping: each tick every car reads the previous
+     * tick's state and the work is split across {@code pool} (or run on the
+     * calling thread if it is null). Results don't depend on the pool size,
+     * but differ from the default in-place stepping.
+     */
+    public Traffic useSynchronousStepping(ForkJoinPool pool){
+        return useSynchronousStepping(pool, false);
+    }
+
+    /**
+     * Synchronous stepping, optionally computing the per-car kinematics in
+     * batches with {@link KinematicsKernel} (vectorized when the JVM runs with
+     * {@code --add-modules jdk.incubator.vector}). Same results either way.
+     */
+    public Traffic useSynchronousStepping(ForkJoinPool pool, boolean vectorKernel){
+        if (boundary != null) {
+            throw new IllegalStateException("Synchronous stepping does not support an open road");
+        }
+        if (cellular != null) {
+            throw new IllegalStateException("The cellular model has its own stepping");
+        }
+        this.synchronous = new SynchronousStepper(engine, pool, vectorKernel);
+        return this;
+    }
+
+    /**
+     * Replaces the detailed car-following model with the much coarser and
+     * faster {@link CellularEngine} for the rest of the run. The road, lanes,
+     * lane drop and vehicles stay the same; the tick {@code dt} should be
+     * about a second. Works on a closed road without synchronous stepping.
+     */
+    public Traffic useCellularModel(){
+        if (synchronous != null || boundary != null) {
+            throw new IllegalStateException("The cellular model works on a closed road with its own stepping");
+        }
+        this.cellular = new CellularEngine(engine, random, config.rightLaneEnd(), dt);
+        return this;
+    }
+
+    /**
+     * Lets cars with nobody within reach skip the full update for up to
+     * {@code horizonSeconds} at a time (0 turns it off); see
+     * {@link SimEngine#setFreeFlowHorizon}. Applies to the default in-place
+     * stepping, and gives the same results.
+     */
+    public Traffic useFreeFlowFastPath(double horizonSeconds){
+        engine.setFreeFlowHorizon((int) Math.round(horizonSeconds / dt));
+        return this;
+    }
+
+    /**
+     * Has cars re-evaluate lane changes only every {@code intervalSeconds}
+     * (0 turns it off), sooner if their leader changes, and at once in the
+     * merge zone; see {@link SimEngine#setLaneChangeInterval}. Cuts the cost
+     * of dense runs at the price of slightly later lane changes.
+     */
+    public Traffic useLaneChangeInterval(double intervalSeconds){
+        engine.setLaneChangeInterval((int) Math.round(intervalSeconds / dt));
+        return this;
+    }
+
+    /**
+     * Makes the road a segment {@code roadLengthFt} long with vehicles arriving
+     * at its start by {@code arrivals} and leaving past its end; see
+     * {@link OpenBoundary}. Works with the default in-place stepping only.
+     */
+    public Traffic useOpenBoundary(double roadLengthFt, ArrivalProcess arrivals){
+        if (synchronous != null) {
+            throw new IllegalStateException("Synchronous stepping does not support an open road");
+        }
+        if (cellular != null) {
+            throw new IllegalStateException("The cellular model does not support an open road");
+        }
+        this.boundary = new OpenBoundary(this, roadLengthFt, arrivals);
+        return this;
+    }
+
+    /** The synchronous stepper set up by {@link #useSynchronousStepping}, or null. */
+    SynchronousStepper synchronousStepper(){
+        return synchronous;
+    }
+
+    boolean usesCellularModel(){
+        return cellular != null;
+    }
+
+    /** The open road set up by {@link #useOpenBoundary}, or null. */
+    public OpenBoundary getOpenBoundary(){
+        return boundary;
     }
 
     public Traffic startSim(){
@@ -95,119 +314,240 @@ public class Traffic {
         return this;
     }
 
-    private void runSim(double totalSeconds) {
-        int steps = (int) (totalSeconds / dt);
-        for (int step = 0; step <= steps; step++) {
-            double currentTime = step * dt;
+    /** Advances the simulation by one tick of {@code dt} seconds, without visualization. */
+    public void step(){
+        store.tickStarting();
+        SimMetrics metrics = engine.metrics();
+        if (metrics == null) {
+            advanceOneTick();
+        } else {
+            StepEvent event = new StepEvent();
+            event.begin();
+            long start = System.nanoTime();
+            advanceOneTick();
+            metrics.stepFinished(start, System.nanoTime());
+            if (event.shouldCommit()) {
+                event.tick = tick + 1;
+                event.vehicles = store.size();
+                metrics.fill(event);
+                event.commit();
+            }
+        }
+        if (engine.stats() != null) {
+            engine.stats().tickFinished();
+        }
+        tick++;
+        store.tickFinished(tick);
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).afterStep(this, tick);
+        }
+    }
 
-            for (int laneNum = 1; laneNum <= lanes; laneNum++) {
-                ArrayList<Car> laneCars = new ArrayList<>();
-                for (Car c : cars) {
-                    if (c.getLane() == laneNum) laneCars.add(c);
-                }
-                laneCars.sort(Comparator.comparingDouble(Car::getDistanceFromStart).reversed());
+    private void advanceOneTick(){
+        if (cellular != null) {
+            cellular.step();
+        } else if (synchronous != null) {
+            synchronous.step(dt);
+        } else if (boundary != null) {
+            boundary.admit(tick * dt);
+            engine.step(dt);
+            boundary.removeExited();
+        } else {
+            engine.step(dt);
+        }
+    }
 
-                for (int i = 0; i < laneCars.size(); i++) {
-                    Car current = laneCars.get(i);
-                    Car ahead = (i > 0) ? laneCars.get(i - 1) : null;
-                    current.update(dt, ahead, cars);
-                }
-            }
+    /**
+     * Turns on event counters and phase timings (and the trafficsim.Step JFR
+     * event) for this simulation, returning the metrics to read them from.
+     */
+    public SimMetrics enableMetrics(){
+        if (engine.metrics() == null) {
+            engine.setMetrics(new SimMetrics());
+        }
+        return engine.metrics();
+    }
+
+    /** The metrics turned on by {@link #enableMetrics()}, or null. */
+    public SimMetrics getMetrics(){
+        return engine.metrics();
+    }
+
+    /**
+     * Starts keeping running averages and detector/section time series over
+     * windows of {@code windowSeconds} (see {@link TrafficStats}), returning
+     * the statistics to add detectors to and read from. Once a tick has been
+     * taken with them on, {@link #getAverageSpeed()} and
+     * {@link #getAverageDistance()} read them instead of scanning every car.
+     */
+    public TrafficStats enableStatistics(double windowSeconds){
+        if (engine.stats() == null) {
+            engine.setStats(new TrafficStats(lanes, windowSeconds));
+        }
+        return engine.stats();
+    }
+
+    /** The statistics turned on by {@link #enableStatistics}, or null. */
+    public TrafficStats getStatistics(){
+        return engine.stats();
+    }
+
+    /** Ticks taken since the simulation was created. */
+    public long getTick(){
+        return tick;
+    }
+
+    /**
+     * Stops the current run after stepping for at least {@code windowSeconds}
+     * twice, once mean speed, flow and lane occupancy change by no more than
+     * {@code tolerance} from one such window to the next; see
+     * {@link SteadyStateMonitor}, which is returned to read the result from.
+     * Turns on statistics if they are off. Set up an open road first.
+     */
+    public SteadyStateMonitor stopWhenSteady(double windowSeconds, double tolerance){
+        SteadyStateMonitor monitor = new SteadyStateMonitor(this, windowSeconds, tolerance);
+        addStepListener(monitor);
+        return monitor;
+    }
+
+    /** Ends the current {@link #startSim()} run after the tick in progress; may be called from any thread. */
+    public void stop(){
+        stopped = true;
+    }
+
+    /** Whether {@link #stop()} has been called since the last run started. */
+    public boolean isStopped(){
+        return stopped;
+    }
+
+    public Traffic addStepListener(StepListener listener){
+        listeners.add(listener);
+        return this;
+    }
+
+    public void removeStepListener(StepListener listener){
+        listeners.remove(listener);
+    }
 
-            if (visualize){
-                System.out.print("\033[H");
-                System.out.println("Time: " + df.format(currentTime));
-                printVisualization();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
+    private void runSim(double totalSeconds) {
+        int steps = (int) (totalSeconds / dt);
+        TerminalRenderer renderer = visualize
+            ? new TerminalRenderer(lanes, config.rightLaneEnd(), config.frameRate(), System.out).start()
+            : null;
+        stopped = false;
+        try {
+            // A restored simulation picks up where its checkpoint left off
+            for (long step = tick; step <= steps && !stopped; step++) {
+                double currentTime = step * dt;
+
+                step();
+
+                if (renderer != null) {
+                    renderer.offer(store, currentTime);
                 }
             }
+            if (renderer != null) {
+                renderer.showFinal(store, (stopped ? tick : steps) * dt);
+            }
+        } finally {
+            if (renderer != null) {
+                renderer.close();
+            }
         }
     }
 
     public double getAverageSpeed(){
+        TrafficStats stats = engine.stats();
+        if (stats != null && stats.ticks() > 0) {
+            return stats.averageSpeed();
+        }
         double sum = 0;
-        for (Car c : cars){
-            sum += c.getSpeed();
+        int count = 0;
+        for (int i = 0; i < store.size(); i++){
+            if (store.lane(i) > 0) {
+                sum += store.speed(i);
+                count++;
+            }
         }
-        return sum/cars.length;
+        return sum/count;
     }
 
     public double getAverageDistance(){
+        TrafficStats stats = engine.stats();
+        if (stats != null && stats.ticks() > 0) {
+            return stats.averageDistance();
+        }
         double sum = 0;
-        for (Car c : cars){
-            sum += c.getDistanceFromStart();
+        int count = 0;
+        for (int i = 0; i < store.size(); i++){
+            if (store.lane(i) > 0) {
+                sum += store.position(i);
+                count++;
+            }
         }
-        return sum/cars.length;
+        return sum/count;
     }
 
     public int getNumLanes(){
         return lanes;
     }
 
-    public double getMaxDistance(){
-        Comparator<Car> dist = Comparator.comparingDouble(Car::getDistanceFromStart);
-        List<Car> carList = List.of(cars);
-        return Collections.max(carList, dist).getDistanceFromStart();
-    }
-
-    public int[] carsPerLane(){
-        int[] lanes = new int[this.getNumLanes()];
-        for (Car c : cars) {
-            lanes[c.getLane() - 1] ++;
+    public LaneIndex laneIndex(){
+        if (cellular != null) {
+            cellular.syncIndex();
         }
-        return lanes;
+        return engine.laneIndex();
     }
 
-    public double getIndexCarDist(int index){
-        return cars[index].getDistanceFromStart();
+    public SimEngine engine(){
+        return engine;
     }
 
+    public VehicleStore store(){
+        return store;
+    }
 
-    private void printVisualization() {
-        final int screenWidth = 92; // characters wide
-        final double worldWidth = 15000; // feet represented across screen
-        String[][] screen = new String[lanes][screenWidth];
+    public int getCarCount(){
+        return store.size();
+    }
 
-        for (int i = 0; i < lanes; i++) {
-            for (int j = 0; j < screenWidth; j++) {
-                screen[i][j] = " ";
-            }
-        }
+    /** A view of the car with the given index; it reads and writes the simulation's state directly. */
+    public Car getCar(int index){
+        return new Car(this, index);
+    }
 
-        for (Car car : cars) {
-            int laneIndex = car.getLane() - 1;
-            int pos = (int) ((car.getDistanceFromStart() / worldWidth) * screenWidth);
-            pos = Math.min(screenWidth - 1, Math.max(0, pos));
-            screen[laneIndex][pos] = colorSymbolFor(car);
+    /** Keeps the lane index in step with a car whose lane or position was set from outside the engine. */
+    void carMoved(int id){
+        if (engine != null) {
+            laneIndex().update(id);
         }
+    }
 
-        int endCol = (int) ((Constants.rightLaneEnd / worldWidth) * screenWidth);
-        if (endCol >= 0 && endCol < screenWidth) {
-            screen[lanes - 1][endCol] = "|"; // show barrier on bottom-most lane
+    public double getMaxDistance(){
+        // Each lane's index is sorted by position, so its last car is its furthest
+        LaneIndex index = laneIndex();
+        double max = Double.NEGATIVE_INFINITY;
+        for (int lane = 1; lane <= lanes; lane++) {
+            int n = index.size(lane);
+            if (n > 0) {
+                max = Math.max(max, store.position(index.carAt(lane, n - 1)));
+            }
         }
-
-        for (int i = 0; i < lanes; i++) {
-            System.out.print("Lane " + (i + 1) + ": ");
-            System.out.println(String.join("", screen[i]));
+        if (max == Double.NEGATIVE_INFINITY) {
+            throw new NoSuchElementException();
         }
-        System.out.println();
+        return max;
     }
 
-    /*
-    private String colorSymbolFor(Car car) {
-        if (car.getMaxSpeed() < 45) return "\u001B[31m>\u001B[0m";
-        if (car.getMaxSpeed() > 75) return "\u001B[32m>\u001B[0m";
-        return ">";
+    public int[] carsPerLane(){
+        int[] lanes = new int[this.getNumLanes()];
+        for (int lane = 1; lane <= lanes.length; lane++) {
+            lanes[lane - 1] = laneIndex().size(lane);
+        }
+        return lanes;
     }
-    */
 
-    private String colorSymbolFor(Car car) {
-        double speed = car.getSpeed(); // current speed
-        if (speed < 45) return "\u001B[31m>\u001B[0m"; // red for slow
-        if (speed < 65) return "\u001B[33m>\u001B[0m"; // yellow for medium
-        return "\u001B[32m>\u001B[0m"; // green for fast
+    public double getIndexCarDist(int index){
+        return store.position(index);
     }
 }
@@ -0,0 +1,299 @@
+package trafficsim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Traffic statistics kept up to date from inside the step loop, collected
+ * only after {@link Traffic#enableStatistics}. The engine reports every car's
+ * move as it makes it, so the road-wide averages below are read in O(1)
+ * instead of rescanning the store, and nothing has to be recorded per car.
+ *
+ * On top of those, the road can be fitted with measuring points that turn
+ * the moves into time series over fixed windows of simulated time, per lane
+ * and for all lanes together:
+ * <ul>
+ * <li>a <em>detector</em> is a virtual loop detector at one position: flow is
+ *     the cars crossing it per hour, speed their space-mean (harmonic mean)
+ *     speed and density flow over speed;</li>
+ * <li>a <em>section</em> is a stretch of road measured with Edie's
+ *     definitions: flow is the distance driven inside it over window time and
+ *     length, density the time spent inside it over window time and length,
+ *     and speed the first over the second.</li>
+ * </ul>
+ * Each window's (density, flow) pairs are points of the fundamental diagram,
+ * and the highest flow at a detector past the merge is the bottleneck's
+ * capacity. Flows are in vehicles per hour, densities in vehicles per mile
+ * and speeds in mph. Lane 0 in the per-lane queries means all lanes.
+ *
+ * Averages describe the road as of the last tick; a car changed from outside
+ * the engine between ticks shows up after the next one.
+ */
+public class TrafficStats {
+    private final int lanes;
+    private final double windowSeconds;
+
+    private double speedSum;
+    private double positionSum;
+    private int moved;
+    private double averageSpeed = Double.NaN;
+    private double averageDistance = Double.NaN;
+    private long[] countedAt = new long[0];
+    private long tick;
+    private long windowStartTick;
+    private long windows;
+    private double dt;
+
+    private double[] detectorAt = new double[0];
+    private long[][] crossings = new long[0][];
+    private double[][] inverseSpeed = new double[0][];
+    private final List<List<Sample>> detectorSeries = new ArrayList<>();
+
+    private double[] sectionFrom = new double[0];
+    private double[] sectionTo = new double[0];
+    private double[][] distanceFt = new double[0][];
+    private double[][] timeSeconds = new double[0][];
+    private final List<List<Sample>> sectionSeries = new ArrayList<>();
+
+    public TrafficStats(int lanes, double windowSeconds) {
+        if (!(windowSeconds > 0)) {
+            throw new IllegalArgumentException("windowSeconds must be positive, was " + windowSeconds);
+        }
+        this.lanes = lanes;
+        this.windowSeconds = windowSeconds;
+    }
+
+    /** Adds a loop detector at {@code positionFt}; returns its number. */
+    public int addDetector(double positionFt) {
+        int d = detectorAt.length;
+        detectorAt = Arrays.copyOf(detectorAt, d + 1);
+        detectorAt[d] = positionFt;
+        crossings = Arrays.copyOf(crossings, d + 1);
+        crossings[d] = new long[lanes + 1];
+        inverseSpeed = Arrays.copyOf(inverseSpeed, d + 1);
+        inverseSpeed[d] = new double[lanes + 1];
+        detectorSeries.add(new ArrayList<>());
+        return d;
+    }
+
+    /** Adds a section from {@code fromFt} to {@code toFt}; returns its number. */
+    public int addSection(double fromFt, double toFt) {
+        if (!(toFt > fromFt)) {
+            throw new IllegalArgumentException("Section must have positive length, was " + fromFt + " to " + toFt);
+        }
+        int s = sectionFrom.length;
+        sectionFrom = Arrays.copyOf(sectionFrom, s + 1);
+        sectionFrom[s] = fromFt;
+        sectionTo = Arrays.copyOf(sectionTo, s + 1);
+        sectionTo[s] = toFt;
+        distanceFt = Arrays.copyOf(distanceFt, s + 1);
+        distanceFt[s] = new double[lanes + 1];
+        timeSeconds = Arrays.copyOf(timeSeconds, s + 1);
+        timeSeconds[s] = new double[lanes + 1];
+        sectionSeries.add(new ArrayList<>());
+        return s;
+    }
+
+    /**
+     * Records vehicle {@code id}'s move this tick, from {@code from} at
+     * {@code fromSpeedMPH} to {@code to} at {@code speedMPH}, in {@code lane}.
+     * In-place stepping moves a car that changed into a lane not yet swept a
+     * second time; that move replaces the first one in the averages and adds
+     * its distance, but no more time, to the sections.
+     */
+    void moved(int id, int lane, double from, double to, double fromSpeedMPH, double speedMPH, double dt) {
+        this.dt = dt;
+        if (id >= countedAt.length) {
+            countedAt = Arrays.copyOf(countedAt, Math.max(id + 1, countedAt.length * 2));
+        }
+        boolean again = countedAt[id] == tick + 1;
+        if (again) {
+            speedSum += speedMPH - fromSpeedMPH;
+            positionSum += to - from;
+        } else {
+            countedAt[id] = tick + 1;
+            speedSum += speedMPH;
+            positionSum += to;
+            moved++;
+        }
+
+        for (int d = 0; d < detectorAt.length; d++) {
+            double x = detectorAt[d];
+            if (from < x && x <= to) {
+                // The crossing speed is what the car actually covered this tick, never zero
+                double inverse = dt * 5280 / ((to - from) * 3600);
+                crossings[d][0]++;
+                crossings[d][lane]++;
+                inverseSpeed[d][0] += inverse;
+                inverseSpeed[d][lane] += inverse;
+            }
+        }
+        for (int s = 0; s < sectionFrom.length; s++) {
+            double a = sectionFrom[s];
+            double b = sectionTo[s];
+            double time;
+            double distance;
+            if (to > from) {
+                distance = Math.max(0, Math.min(to, b) - Math.max(from, a));
+                time = again ? 0 : distance / (to - from) * dt;
+            } else if (again) {
+                distance = 0;
+                time = 0;
+            } else {
+                distance = 0;
+                time = from >= a && from < b ? dt : 0;
+            }
+            if (time > 0 || distance > 0) {
+                distanceFt[s][0] += distance;
+                distanceFt[s][lane] += distance;
+                timeSeconds[s][0] += time;
+                timeSeconds[s][lane] += time;
+            }
+        }
+    }
+
+    /** Takes a car that left the road after moving this tick back out of the averages. */
+    void removed(double position, double speedMPH) {
+        speedSum -= speedMPH;
+        positionSum -= position;
+        moved--;
+    }
+
+    /** Publishes this tick's averages and, at the end of a window, every detector's and section's sample. */
+    void tickFinished() {
+        tick++;
+        averageSpeed = speedSum / moved;
+        averageDistance = positionSum / moved;
+        speedSum = 0;
+        positionSum = 0;
+        moved = 0;
+        if (dt > 0 && (tick - windowStartTick) * dt >= windowSeconds - dt / 2) {
+            closeWindow();
+        }
+    }
+
+    private void closeWindow() {
+        double start = windowStartTick * dt;
+        double end = tick * dt;
+        double hours = (end - start) / 3600;
+        for (int d = 0; d < detectorAt.length; d++) {
+            double[] flow = new double[lanes + 1];
+            double[] density = new double[lanes + 1];
+            double[] speed = new double[lanes + 1];
+            for (int l = 0; l <= lanes; l++) {
+                flow[l] = crossings[d][l] / hours;
+                speed[l] = crossings[d][l] / inverseSpeed[d][l];
+                density[l] = crossings[d][l] == 0 ? 0 : flow[l] / speed[l];
+            }
+            detectorSeries.get(d).add(new Sample(start, end, flow, density, speed));
+            Arrays.fill(crossings[d], 0);
+            Arrays.fill(inverseSpeed[d], 0);
+        }
+        for (int s = 0; s < sectionFrom.length; s++) {
+            double miles = (sectionTo[s] - sectionFrom[s]) / 5280;
+            double[] flow = new double[lanes + 1];
+            double[] density = new double[lanes + 1];
+            double[] speed = new double[lanes + 1];
+            for (int l = 0; l <= lanes; l++) {
+                double vehicleMiles = distanceFt[s][l] / 5280;
+                double vehicleHours = timeSeconds[s][l] / 3600;
+                flow[l] = vehicleMiles / (hours * miles);
+                density[l] = vehicleHours / (hours * miles);
+                speed[l] = vehicleMiles / vehicleHours;
+            }
+            sectionSeries.get(s).add(new Sample(start, end, flow, density, speed));
+            Arrays.fill(distanceFt[s], 0);
+            Arrays.fill(timeSeconds[s], 0);
+        }
+        windowStartTick = tick;
+        windows++;
+    }
+
+    /** Mean speed in mph of the cars on the road after the last tick; NaN if there were none. */
+    public double averageSpeed() {
+        return averageSpeed;
+    }
+
+    /** Mean position in feet of the cars on the road after the last tick; NaN if there were none. */
+    public double averageDistance() {
+        return averageDistance;
+    }
+
+    /** Ticks taken since the statistics were turned on. */
+    public long ticks() {
+        return tick;
+    }
+
+    /** Windows finished so far. */
+    public long windows() {
+        return windows;
+    }
+
+    public double windowSeconds() {
+        return windowSeconds;
+    }
+
+    /** The finished windows of detector {@code d}, oldest first. */
+    public List<Sample> detectorSeries(int d) {
+        return detectorSeries.get(d);
+    }
+
+    /** The finished windows of section {@code s}, oldest first. */
+    public List<Sample> sectionSeries(int s) {
+        return sectionSeries.get(s);
+    }
+
+    /** The highest all-lane flow any finished window saw at detector {@code d}, in vehicles per hour. */
+    public double maxFlow(int d) {
+        double max = 0;
+        for (Sample sample : detectorSeries.get(d)) {
+            max = Math.max(max, sample.flow(0));
+        }
+        return max;
+    }
+
+    /** One window of measurements at a detector or over a section. Speed is NaN for a lane nobody used. */
+    public static final class Sample {
+        private final double start;
+        private final double end;
+        private final double[] flow;
+        private final double[] density;
+        private final double[] speed;
+
+        Sample(double start, double end, double[] flow, double[] density, double[] speed) {
+            this.start = start;
+            this.end = end;
+            this.flow = flow;
+            this.density = density;
+            this.speed = speed;
+        }
+
+        /** Simulated time the window started, in seconds. */
+        public double start() {
+            return start;
+        }
+
+        public double end() {
+            return end;
+        }
+
+        public double flow(int lane) {
+            return flow[lane];
+        }
+
+        public double density(int lane) {
+            return density[lane];
+        }
+
+        public double speed(int lane) {
+            return speed[lane];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%.1f, %.1f) flow %.0f veh/h, density %.1f veh/mi, speed %.1f mph",
+                    start, end, flow[0], density[0], speed[0]);
+        }
+    }
+}
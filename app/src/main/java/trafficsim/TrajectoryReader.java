@@ -0,0 +1,188 @@
+package trafficsim;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Cursor over a file written by {@link TrajectoryRecorder}. The file is read
+ * through one fixed-size buffer, so files far larger than the heap can be
+ * scanned. Delta-encoded positions are reconstructed as the cursor moves.
+ *
+ * <pre>
+ * try (TrajectoryReader r = TrajectoryReader.open(path)) {
+ *     while (r.nextSample()) {
+ *         while (r.nextVehicle()) {
+ *             use(r.tick(), r.id(), r.lane(), r.position(), r.speed());
+ *         }
+ *     }
+ * }
+ * </pre>
+ */
+public class TrajectoryReader implements AutoCloseable {
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final boolean deltaEncoded;
+    private final int sampleEvery;
+    private final int keyframeEvery;
+    private final double dt;
+
+    private double[] positions = new double[0];
+    private boolean keyframe;
+    private long tick;
+    private int count;
+    private int remaining;
+
+    private int id;
+    private int lane;
+    private double position;
+    private float speed;
+
+    private TrajectoryReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        buffer.flip();
+        require(TrajectoryRecorder.HEADER_BYTES);
+        if (buffer.getInt() != TrajectoryRecorder.MAGIC) {
+            throw new IOException("Not a trajectory file");
+        }
+        int version = buffer.getInt();
+        if (version != TrajectoryRecorder.VERSION) {
+            throw new IOException("Unsupported trajectory file version " + version);
+        }
+        this.deltaEncoded = (buffer.getInt() & TrajectoryRecorder.FLAG_DELTA) != 0;
+        this.sampleEvery = buffer.getInt();
+        this.keyframeEvery = buffer.getInt();
+        this.dt = buffer.getDouble();
+    }
+
+    public static TrajectoryReader open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new TrajectoryReader(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public boolean isDeltaEncoded() {
+        return deltaEncoded;
+    }
+
+    public int sampleEvery() {
+        return sampleEvery;
+    }
+
+    public int keyframeEvery() {
+        return keyframeEvery;
+    }
+
+    public double dt() {
+        return dt;
+    }
+
+    /**
+     * Moves to the next sample, skipping whatever is left of the current one.
+     * Returns false at the end of the file.
+     */
+    public boolean nextSample() throws IOException {
+        while (remaining > 0) {
+            nextVehicle();
+        }
+        if (!fill(TrajectoryRecorder.SAMPLE_HEADER_BYTES)) {
+            if (buffer.hasRemaining()) {
+                throw new EOFException("Truncated sample header");
+            }
+            return false;
+        }
+        keyframe = buffer.get() == TrajectoryRecorder.KEYFRAME;
+        tick = buffer.getLong();
+        count = buffer.getInt();
+        remaining = count;
+        if (positions.length < count) {
+            positions = Arrays.copyOf(positions, Math.max(count, positions.length * 2));
+        }
+        return true;
+    }
+
+    /** Moves to the next vehicle of the current sample; false once the sample is exhausted. */
+    public boolean nextVehicle() throws IOException {
+        if (remaining == 0) {
+            return false;
+        }
+        require(keyframe ? TrajectoryRecorder.KEYFRAME_RECORD_BYTES : TrajectoryRecorder.DELTA_RECORD_BYTES);
+        id = buffer.getInt();
+        lane = buffer.getShort();
+        buffer.getShort();
+        if (keyframe) {
+            position = buffer.getDouble();
+        } else {
+            position = positions[id] + buffer.getFloat();
+        }
+        positions[id] = position;
+        speed = buffer.getFloat();
+        remaining--;
+        return true;
+    }
+
+    public long tick() {
+        return tick;
+    }
+
+    public double time() {
+        return tick * dt;
+    }
+
+    /** Number of vehicles in the current sample. */
+    public int count() {
+        return count;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public int lane() {
+        return lane;
+    }
+
+    public double position() {
+        return position;
+    }
+
+    public double speed() {
+        return speed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void require(int bytes) throws IOException {
+        if (!fill(bytes)) {
+            throw new EOFException("Trajectory file ends mid-record");
+        }
+    }
+
+    private boolean fill(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return true;
+        }
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.remaining() >= bytes;
+    }
+}
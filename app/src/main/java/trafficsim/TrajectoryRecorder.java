@@ -0,0 +1,209 @@
+package trafficsim;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streams every vehicle's lane, position and speed to a binary file while a
+ * simulation runs. Attach it with {@link Traffic#addStepListener}; it samples
+ * every {@code sampleEvery} ticks and is read back with {@link TrajectoryReader}.
+ *
+ * The simulation thread only encodes records into a ring of direct buffers; a
+ * background thread drains full buffers to the file. The simulation waits only
+ * if the writer falls a whole ring behind.
+ *
+ * File layout (little-endian):
+ * <pre>
+ * header: int magic "TRJ1", int version, int flags (bit 0 = delta), int sampleEvery, int keyframeEvery, double dt
+ * sample: byte kind (0 = keyframe, 1 = delta), long tick, int count, then count records
+ * keyframe record: int id, short lane, short unused, double position, float speed   (20 bytes)
+ * delta record:    int id, short lane, short unused, float positionDelta, float speed (16 bytes)
+ * </pre>
+ * With delta encoding every {@code keyframeEvery}-th sample is still a keyframe,
+ * and deltas are taken against what a reader will have reconstructed, so
+ * rounding never accumulates past one keyframe interval.
+ */
+public class TrajectoryRecorder implements StepListener, AutoCloseable {
+    static final int MAGIC = 0x54524A31;
+    static final int VERSION = 1;
+    static final int FLAG_DELTA = 1;
+    static final byte KEYFRAME = 0;
+    static final byte DELTA = 1;
+    static final int HEADER_BYTES = 28;
+    static final int SAMPLE_HEADER_BYTES = 13;
+    static final int KEYFRAME_RECORD_BYTES = 20;
+    static final int DELTA_RECORD_BYTES = 16;
+
+    private static final int BUFFER_BYTES = 4 << 20;
+    private static final int RING_SIZE = 4;
+    private static final int DEFAULT_KEYFRAME_EVERY = 64;
+
+    private final FileChannel channel;
+    private final int sampleEvery;
+    private final boolean delta;
+    private final int keyframeEvery;
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(RING_SIZE);
+    private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(RING_SIZE + 1);
+    private final ByteBuffer endOfStream = ByteBuffer.allocate(0);
+    private final Thread writer;
+    private volatile IOException failure;
+
+    private ByteBuffer current;
+    private double[] written = new double[0];
+    private long samples;
+    private boolean closed;
+
+    private TrajectoryRecorder(FileChannel channel, double dt, int sampleEvery, boolean delta, int keyframeEvery) {
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("sampleEvery must be at least 1, was " + sampleEvery);
+        }
+        this.channel = channel;
+        this.sampleEvery = sampleEvery;
+        this.delta = delta;
+        this.keyframeEvery = keyframeEvery;
+        for (int i = 0; i < RING_SIZE; i++) {
+            free.add(ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        this.current = free.poll();
+        current.putInt(MAGIC).putInt(VERSION).putInt(delta ? FLAG_DELTA : 0)
+            .putInt(sampleEvery).putInt(keyframeEvery).putDouble(dt);
+        this.writer = new Thread(this::drain, "trajectory-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /** Creates (or truncates) {@code file} and records every {@code sampleEvery} ticks of a run with step {@code dt}. */
+    public static TrajectoryRecorder open(Path file, double dt, int sampleEvery, boolean deltaEncoding) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        return new TrajectoryRecorder(channel, dt, sampleEvery, deltaEncoding, DEFAULT_KEYFRAME_EVERY);
+    }
+
+    @Override
+    public void afterStep(Traffic traffic, long tick) {
+        if (tick % sampleEvery == 0) {
+            record(traffic.store(), tick);
+        }
+    }
+
+    /** Appends one sample of every vehicle in {@code store}, regardless of the sampling interval. */
+    public void record(VehicleStore store, long tick) {
+        checkFailure();
+        int count = store.size();
+        boolean keyframe = !delta || samples % keyframeEvery == 0;
+        if (written.length < count) {
+            written = Arrays.copyOf(written, Math.max(count, written.length * 2));
+        }
+
+        reserve(SAMPLE_HEADER_BYTES);
+        current.put(keyframe ? KEYFRAME : DELTA).putLong(tick).putInt(count);
+        for (int id = 0; id < count; id++) {
+            double position = store.position(id);
+            if (keyframe) {
+                reserve(KEYFRAME_RECORD_BYTES);
+                current.putInt(id).putShort((short) store.lane(id)).putShort((short) 0)
+                    .putDouble(position).putFloat((float) store.speed(id));
+                written[id] = position;
+            } else {
+                float step = (float) (position - written[id]);
+                reserve(DELTA_RECORD_BYTES);
+                current.putInt(id).putShort((short) store.lane(id)).putShort((short) 0)
+                    .putFloat(step).putFloat((float) store.speed(id));
+                written[id] += step;
+            }
+        }
+        samples++;
+    }
+
+    public long samplesRecorded() {
+        return samples;
+    }
+
+    /** Flushes everything recorded so far to disk and closes the file. */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            handOff(current);
+            full.put(endOfStream);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            current = null;
+            channel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void reserve(int bytes) {
+        if (current.remaining() < bytes) {
+            handOff(current);
+            try {
+                current = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the trajectory writer", e);
+            }
+            checkFailure();
+        }
+    }
+
+    private void handOff(ByteBuffer buffer) {
+        buffer.flip();
+        try {
+            full.put(buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while handing off trajectory data", e);
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new UncheckedIOException("Trajectory writer failed", failure);
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                ByteBuffer buffer = full.take();
+                if (buffer == endOfStream) {
+                    break;
+                }
+                try {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                buffer.clear();
+                free.put(buffer);
+            }
+            if (failure == null) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package trafficsim;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A {@link VehicleStore} for fleets made of a few {@link VehicleType}s: each
+ * vehicle keeps only its lane, position, speed and a type id, 24 bytes
+ * instead of 68, and the parameters are read from one row per type. The
+ * parameter accessors cost one more load; the rows of a few dozen types stay
+ * in cache.
+ *
+ * Every vehicle has a type: adding one by its parameters alone is refused,
+ * since a type per randomly drawn vehicle would grow the rows without bound
+ * (types are never dropped). Types are interned on their parameters, so two
+ * types that differ only in name share a row, under the first one's name.
+ * Checkpoints are written in the plain store's format and restore into one.
+ */
+public final class TypedVehicleStore extends VehicleStore {
+    private int size;
+    private int[] lane;
+    private double[] position;
+    private double[] speed;
+    private int[] type;
+
+    private final List<VehicleType> types = new ArrayList<>();
+    private double[] maxSpeed = new double[8];
+    private double[] maxAccel = new double[8];
+    private double[] desiredGap = new double[8];
+    private double[] kP = new double[8];
+    private double[] kD = new double[8];
+    private double[] length = new double[8];
+
+    public TypedVehicleStore(int capacity) {
+        capacity = Math.max(1, capacity);
+        this.lane = new int[capacity];
+        this.position = new double[capacity];
+        this.speed = new double[capacity];
+        this.type = new int[capacity];
+    }
+
+    /**
+     * The id of {@code vehicleType} in this store, or of a type with the same
+     * parameters, registering it if it is new.
+     */
+    public int typeId(VehicleType vehicleType) {
+        // A linear scan: there are few types, and it neither allocates nor hashes on every arrival
+        for (int t = 0; t < types.size(); t++) {
+            if (types.get(t) == vehicleType) {
+                return t;
+            }
+        }
+        for (int t = 0; t < types.size(); t++) {
+            if (types.get(t).sameParameters(vehicleType)) {
+                return t;
+            }
+        }
+        int t = types.size();
+        if (t == maxSpeed.length) {
+            maxSpeed = Arrays.copyOf(maxSpeed, t * 2);
+            maxAccel = Arrays.copyOf(maxAccel, t * 2);
+            desiredGap = Arrays.copyOf(desiredGap, t * 2);
+            kP = Arrays.copyOf(kP, t * 2);
+            kD = Arrays.copyOf(kD, t * 2);
+            length = Arrays.copyOf(length, t * 2);
+        }
+        maxSpeed[t] = vehicleType.maxSpeedMPH();
+        maxAccel[t] = vehicleType.maxAccelMPHSquared();
+        desiredGap[t] = vehicleType.desiredGapFt();
+        kP[t] = vehicleType.kP();
+        kD[t] = vehicleType.kD();
+        length[t] = vehicleType.lengthFt();
+        types.add(vehicleType);
+        return t;
+    }
+
+    /** The type id of vehicle {@code id}; vehicles can be grouped by it. */
+    public int typeOf(int id) {
+        return type[id];
+    }
+
+    public VehicleType type(int typeId) {
+        return types.get(typeId);
+    }
+
+    public int typeCount() {
+        return types.size();
+    }
+
+    @Override
+    public int add(int lane, VehicleType vehicleType) {
+        return add(lane, typeId(vehicleType));
+    }
+
+    /** Refused: every vehicle here needs a type; see the class comment. */
+    @Override
+    public int add(int lane, double maxSpeedMPH, double maxAccelMPHSquared, double desiredDistance, double kP, double kD, double lengthFt) {
+        throw new UnsupportedOperationException("A TypedVehicleStore only takes vehicles of a VehicleType");
+    }
+
+    /** Copies a vehicle of another typed store, keeping its type; vehicles of other stores have none and are refused. */
+    @Override
+    public int addCopy(VehicleStore from, int fromId) {
+        if (!(from instanceof TypedVehicleStore typed)) {
+            throw new UnsupportedOperationException("A TypedVehicleStore only takes vehicles of a VehicleType");
+        }
+        int id = add(from.lane(fromId), typed.type(typed.typeOf(fromId)));
+        setMotion(id, from.speed(fromId), from.position(fromId));
+        return id;
+    }
+
+    /** The slot has type 0, or no type at all while none is registered, until it is reused. */
+    @Override
+    public int allocate() {
+        int id = add(0, 0);
+        speed[id] = 0;
+        return id;
+    }
+
+    private int add(int lane, int typeId) {
+        if (size == this.lane.length) {
+            int capacity = size * 2;
+            this.lane = Arrays.copyOf(this.lane, capacity);
+            position = Arrays.copyOf(position, capacity);
+            speed = Arrays.copyOf(speed, capacity);
+            type = Arrays.copyOf(type, capacity);
+        }
+        int id = size++;
+        reuse(id, lane, typeId);
+        return id;
+    }
+
+    @Override
+    public void reuse(int id, int lane, VehicleType vehicleType) {
+        reuse(id, lane, typeId(vehicleType));
+    }
+
+    /** Refused, as {@link #add(int, double, double, double, double, double, double)} is. */
+    @Override
+    public void reuse(int id, int lane, double maxSpeedMPH, double maxAccelMPHSquared, double desiredDistance, double kP, double kD, double lengthFt) {
+        throw new UnsupportedOperationException("A TypedVehicleStore only takes vehicles of a VehicleType");
+    }
+
+    private void reuse(int id, int lane, int typeId) {
+        this.lane[id] = lane;
+        this.type[id] = typeId;
+        this.position[id] = 0;
+        this.speed[id] = maxSpeed[typeId] / 2;
+    }
+
+    /** Writes the plain store's columns, expanding each vehicle's type. */
+    @Override
+    public void writeTo(WritableByteChannel out, ByteBuffer scratch) throws IOException {
+        Checkpoint.writeInts(out, scratch, lane, size);
+        Checkpoint.writeDoubles(out, scratch, position, size);
+        Checkpoint.writeDoubles(out, scratch, speed, size);
+        double[] column = new double[size];
+        for (double[] parameter : new double[][] {maxSpeed, maxAccel, desiredGap, kP, kD, length}) {
+            for (int id = 0; id < size; id++) {
+                column[id] = parameter[type[id]];
+            }
+            Checkpoint.writeDoubles(out, scratch, column, size);
+        }
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int lane(int id) {
+        return lane[id];
+    }
+
+    @Override
+    public void setLane(int id, int value) {
+        lane[id] = value;
+    }
+
+    @Override
+    public double position(int id) {
+        return position[id];
+    }
+
+    @Override
+    public void setPosition(int id, double value) {
+        position[id] = value;
+    }
+
+    @Override
+    public double speed(int id) {
+        return speed[id];
+    }
+
+    @Override
+    public void setSpeed(int id, double value) {
+        speed[id] = value;
+    }
+
+    @Override
+    public void setMotion(int id, double speedMPH, double position) {
+        this.speed[id] = speedMPH;
+        this.position[id] = position;
+    }
+
+    @Override
+    public double maxSpeed(int id) {
+        return maxSpeed[type[id]];
+    }
+
+    @Override
+    public double maxAccel(int id) {
+        return maxAccel[type[id]];
+    }
+
+    @Override
+    public double desiredGap(int id) {
+        return desiredGap[type[id]];
+    }
+
+    @Override
+    public double kP(int id) {
+        return kP[type[id]];
+    }
+
+    @Override
+    public double kD(int id) {
+        return kD[type[id]];
+    }
+
+    @Override
+    public double length(int id) {
+        return length[type[id]];
+    }
+}
@@ -0,0 +1,71 @@
+package trafficsim;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A list of whole vehicles tagged with their global ids (and, for lane-change
+ * claims, a target lane), as sent between the shards of a
+ * {@link ShardCoordinator} run.
+ */
+final class VehicleBatch {
+    static final int RECORD_BYTES = 4 + 4 + 4 + 8 * 8;
+
+    final VehicleStore vehicles = new HeapVehicleStore(16);
+    int[] ids = new int[16];
+    int[] targets = new int[16];
+
+    int size() {
+        return vehicles.size();
+    }
+
+    void clear() {
+        vehicles.clear();
+    }
+
+    void add(int id, VehicleStore from, int local, int target) {
+        int i = vehicles.addCopy(from, local);
+        if (i == ids.length) {
+            ids = Arrays.copyOf(ids, i * 2);
+            targets = Arrays.copyOf(targets, i * 2);
+        }
+        ids[i] = id;
+        targets[i] = target;
+    }
+
+    int bytes() {
+        return 4 + size() * RECORD_BYTES;
+    }
+
+    void writeTo(ByteBuffer out) {
+        out.putInt(size());
+        for (int i = 0; i < size(); i++) {
+            out.putInt(ids[i]).putInt(vehicles.lane(i)).putInt(targets[i])
+                .putDouble(vehicles.position(i)).putDouble(vehicles.speed(i))
+                .putDouble(vehicles.maxSpeed(i)).putDouble(vehicles.maxAccel(i))
+                .putDouble(vehicles.desiredGap(i)).putDouble(vehicles.kP(i))
+                .putDouble(vehicles.kD(i)).putDouble(vehicles.length(i));
+        }
+    }
+
+    /** Replaces this batch's contents with a batch written by {@link #writeTo}. */
+    void readFrom(ByteBuffer in) {
+        clear();
+        int count = in.getInt();
+        for (int k = 0; k < count; k++) {
+            int id = in.getInt();
+            int lane = in.getInt();
+            int target = in.getInt();
+            double position = in.getDouble();
+            double speed = in.getDouble();
+            int i = vehicles.add(lane, in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble());
+            vehicles.setMotion(i, speed, position);
+            if (i == ids.length) {
+                ids = Arrays.copyOf(ids, i * 2);
+                targets = Arrays.copyOf(targets, i * 2);
+            }
+            ids[i] = id;
+            targets[i] = target;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package trafficsim;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Column storage for every vehicle in a simulation: one column per
+ * attribute, indexed by vehicle id. The step loop works on ids into these
+ * columns rather than on {@link Car} objects.
+ *
+ * A vehicle in lane 0 is off the road: it has left an open road and waits in
+ * the pool to be reused, and the engine never sees it.
+ *
+ * The columns live in a {@link HeapVehicleStore} (arrays, the default), a
+ * {@link MappedVehicleStore} (a memory-mapped file) or a
+ * {@link TypedVehicleStore} (parameters shared per vehicle type). The
+ * implementations are final and this package's own, so a run that only ever
+ * loads the heap store has a single receiver for the accessors in the step
+ * loop and they inline.
+ */
+public abstract class VehicleStore implements SimEngine.MotionSink {
+
+    VehicleStore() {
+    }
+
+    /** Appends a vehicle at the start of the road moving at half its max speed. Returns its id. */
+    public abstract int add(int lane, double maxSpeedMPH, double maxAccelMPHSquared, double desiredDistance, double kP, double kD, double lengthFt);
+
+    /**
+     * Appends an empty slot off the road (lane 0), without parameters, for a
+     * pool to fill in later with {@link #reuse}. Returns its id.
+     */
+    public abstract int allocate();
+
+    /** Appends a vehicle of {@code type} as {@link #add(int, double, double, double, double, double, double)} would. */
+    public int add(int lane, VehicleType type) {
+        return add(lane, type.maxSpeedMPH(), type.maxAccelMPHSquared(), type.desiredGapFt(), type.kP(), type.kD(), type.lengthFt());
+    }
+
+    /** Overwrites vehicle {@code id} with a new one of {@code type}. */
+    public void reuse(int id, int lane, VehicleType type) {
+        reuse(id, lane, type.maxSpeedMPH(), type.maxAccelMPHSquared(), type.desiredGapFt(), type.kP(), type.kD(), type.lengthFt());
+    }
+
+    /**
+     * Overwrites vehicle {@code id} with a new one, as {@link #add} would have
+     * created it. Lets an open road recycle the ids of vehicles that have left.
+     */
+    public abstract void reuse(int id, int lane, double maxSpeedMPH, double maxAccelMPHSquared, double desiredDistance, double kP, double kD, double lengthFt);
+
+    /** Appends a copy of another store's vehicle, dynamic state included. Returns the new id. */
+    public int addCopy(VehicleStore from, int fromId) {
+        int id = add(from.lane(fromId), from.maxSpeed(fromId), from.maxAccel(fromId), from.desiredGap(fromId),
+                from.kP(fromId), from.kD(fromId), from.length(fromId));
+        setMotion(id, from.speed(fromId), from.position(fromId));
+        return id;
+    }
+
+    /**
+     * Writes every column for the first {@link #size()} vehicles, one column
+     * after another: lanes, positions, speeds, max speeds, max accelerations,
+     * desired gaps, kP, kD and lengths. {@link HeapVehicleStore#readFrom} reads
+     * them back.
+     */
+    public abstract void writeTo(WritableByteChannel out, ByteBuffer scratch) throws IOException;
+
+    /** Forgets every vehicle, keeping the allocated columns; used for hand-off buffers. */
+    public abstract void clear();
+
+    /** Called before a tick changes any vehicle; see {@link MappedVehicleStore}. */
+    void tickStarting() {
+    }
+
+    /** Called once tick {@code tick} has finished changing vehicles. */
+    void tickFinished(long tick) {
+    }
+
+    public abstract int size();
+
+    public abstract int lane(int id);
+
+    public abstract void setLane(int id, int value);
+
+    public abstract double position(int id);
+
+    public abstract void setPosition(int id, double value);
+
+    public abstract double speed(int id);
+
+    public abstract void setSpeed(int id, double value);
+
+    public abstract double maxSpeed(int id);
+
+    public abstract double maxAccel(int id);
+
+    public abstract double desiredGap(int id);
+
+    public abstract double kP(int id);
+
+    public abstract double kD(int id);
+
+    public abstract double length(int id);
+}
@@ -0,0 +1,105 @@
+package trafficsim;
+
+import java.util.Objects;
+
+/**
+ * The fixed parameters of a class of vehicles: how fast and hard they drive,
+ * how their controller reacts and how long they are. Instances are immutable,
+ * so one type can be shared by any number of vehicles and simulations; a
+ * {@link TypedVehicleStore} keeps each type once and gives its vehicles only
+ * a type id.
+ *
+ * Two types are equal when their names and parameters are.
+ */
+public final class VehicleType {
+    /** The length of the preset types, and of a {@link Car} built without one. */
+    public static final double DEFAULT_LENGTH_FT = 15;
+
+    public static final VehicleType FAST = new VehicleType("fast", 70, 10, 10, 0.7, 0.03, DEFAULT_LENGTH_FT);
+    public static final VehicleType MEDIUM = new VehicleType("medium", 50, 8, 10, 0.6, 0.025, DEFAULT_LENGTH_FT);
+    public static final VehicleType SLOW = new VehicleType("slow", 30, 6, 10, 0.5, 0.02, DEFAULT_LENGTH_FT);
+
+    private final String name;
+    private final double maxSpeedMPH;
+    private final double maxAccelMPHSquared;
+    private final double desiredGapFt;
+    private final double kP;
+    private final double kD;
+    private final double lengthFt;
+
+    /** {@code name} may be null for a type made up on the fly. */
+    public VehicleType(String name, double maxSpeedMPH, double maxAccelMPHSquared, double desiredGapFt, double kP, double kD, double lengthFt) {
+        if (!(maxSpeedMPH > 0)) {
+            throw new IllegalArgumentException("maxSpeedMPH must be positive, was " + maxSpeedMPH);
+        }
+        if (!(lengthFt > 0)) {
+            throw new IllegalArgumentException("lengthFt must be positive, was " + lengthFt);
+        }
+        this.name = name;
+        this.maxSpeedMPH = maxSpeedMPH;
+        this.maxAccelMPHSquared = maxAccelMPHSquared;
+        this.desiredGapFt = desiredGapFt;
+        this.kP = kP;
+        this.kD = kD;
+        this.lengthFt = lengthFt;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public double maxSpeedMPH() {
+        return maxSpeedMPH;
+    }
+
+    public double maxAccelMPHSquared() {
+        return maxAccelMPHSquared;
+    }
+
+    public double desiredGapFt() {
+        return desiredGapFt;
+    }
+
+    public double kP() {
+        return kP;
+    }
+
+    public double kD() {
+        return kD;
+    }
+
+    public double lengthFt() {
+        return lengthFt;
+    }
+
+    /** A new car of this type in {@code lane}, on its own until handed to a simulation. */
+    public Car newCar(int lane) {
+        return new Car(lane, this);
+    }
+
+    /** Whether {@code other} drives the same, whatever either is called. */
+    public boolean sameParameters(VehicleType other) {
+        return maxSpeedMPH == other.maxSpeedMPH && maxAccelMPHSquared == other.maxAccelMPHSquared
+                && desiredGapFt == other.desiredGapFt && kP == other.kP && kD == other.kD && lengthFt == other.lengthFt;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof VehicleType)) {
+            return false;
+        }
+        VehicleType t = (VehicleType) o;
+        return Objects.equals(name, t.name) && sameParameters(t);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, maxSpeedMPH, maxAccelMPHSquared, desiredGapFt, kP, kD, lengthFt);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s(%.0f mph, %.1f mph/s, gap %.0f ft, kP %.3f, kD %.3f, %.0f ft)",
+                name == null ? "type" : name, maxSpeedMPH, maxAccelMPHSquared, desiredGapFt, kP, kD, lengthFt);
+    }
+}
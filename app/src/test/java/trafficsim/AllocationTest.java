@@ -0,0 +1,50 @@
+package trafficsim;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.management.ManagementFactory;
+
+public class AllocationTest {
+    // Generous enough to absorb JIT/profiling noise, far below one object per car per step
+    private static final long BUDGET_BYTES = 16 * 1024;
+    private static final int WARMUP_STEPS = 2000;
+    private static final int MEASURED_STEPS = 1000;
+
+    @Test
+    void steadyStateStepShouldNotAllocate() {
+        Traffic t = Traffic.createSim(mergeScenario());
+
+        long allocated = allocatedDuringSteps(t);
+        assertTrue(allocated < BUDGET_BYTES,
+            () -> MEASURED_STEPS + " steps allocated " + allocated + " bytes");
+    }
+
+    @Test
+    void singleThreadedSynchronousStepShouldNotAllocate() {
+        Traffic t = Traffic.createSim(mergeScenario()).useSynchronousStepping(null);
+
+        long allocated = allocatedDuringSteps(t);
+        assertTrue(allocated < BUDGET_BYTES,
+            () -> MEASURED_STEPS + " synchronous steps allocated " + allocated + " bytes");
+    }
+
+    private static SimConfig mergeScenario() {
+        return SimConfig.defaults().withLanes(3).withCars(1000).withRightLaneEnd(2000).withSeed(7);
+    }
+
+    private static long allocatedDuringSteps(Traffic t) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+
+        for (int i = 0; i < WARMUP_STEPS; i++) {
+            t.step();
+        }
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_STEPS; i++) {
+            t.step();
+        }
+        return threads.getThreadAllocatedBytes(threadId) - before;
+    }
+}
@@ -2,19 +2,31 @@ package trafficsim;
 
 import org.junit.jupiter.api.Test;
 
-import trafficsim.Constants.ConstantCars;
-
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 public class TrafficTest {
 
     @Test
     void fastCarShouldStayBehindSlowCarInSameLane() {
-        Car slowCar = ConstantCars.slowCar;
-        Car fastCar = ConstantCars.fastCar;
+        Car slowCar = VehicleType.SLOW.newCar(1);
+        Car fastCar = VehicleType.FAST.newCar(1);
 
         slowCar.setDistanceFromStart(100);
         fastCar.setDistanceFromStart(50);
@@ -36,8 +48,8 @@ public class TrafficTest {
 
     @Test
     void carShouldMaintainDesiredDistance() {
-        Car lead = ConstantCars.slowCar;
-        Car follow = ConstantCars.fastCar;
+        Car lead = VehicleType.SLOW.newCar(1);
+        Car follow = VehicleType.FAST.newCar(1);
 
         lead.setDistanceFromStart(100);
         follow.setDistanceFromStart(60);
@@ -82,4 +94,814 @@ public class TrafficTest {
         // It should've moved a little
         assertTrue(c.getDistanceFromStart() > 0, ()->"Simulation should always take at least 1 step");
     }
+
+    @Test
+    void laneIndexShouldFindNeighborsInEachLane() {
+        Car a = new Car(1, 60, 8, 10, 0.5, 0.02);
+        Car b = new Car(1, 60, 8, 10, 0.5, 0.02);
+        Car c = new Car(1, 60, 8, 10, 0.5, 0.02);
+        a.setDistanceFromStart(100);
+        b.setDistanceFromStart(300);
+        c.setDistanceFromStart(200);
+
+        Traffic t = Traffic.createSim(1, List.of(a, b, c), Constants.dt, Constants.dt, false);
+        LaneIndex index = t.laneIndex();
+
+        assertEquals(c.getId(), index.leader(1, 100));
+        assertEquals(b.getId(), index.leader(1, 250));
+        assertEquals(-1, index.leader(1, 300));
+        assertEquals(c.getId(), index.follower(1, 300));
+        assertEquals(-1, index.follower(1, 100));
+        assertEquals(c.getId(), a.findFrontCar(1).getId());
+
+        c.setDistanceFromStart(400);
+        index.update(c.getId());
+        assertEquals(b.getId(), a.findFrontCar(1).getId());
+        assertEquals(c.getId(), index.leader(1, 300));
+    }
+
+    @Test
+    void carsShouldTakeTheirLengthFromTheConfigUnlessGivenOne() {
+        Car unsized = new Car(1, 60, 8, 10, 0.5, 0.02);
+        Car sized = new Car(1, 60, 8, 10, 0.5, 0.02, 12);
+        assertEquals(VehicleType.DEFAULT_LENGTH_FT, unsized.getLength());
+
+        double saved = Constants.carLengthFt;
+        Constants.carLengthFt = 40;
+        try {
+            assertEquals(VehicleType.DEFAULT_LENGTH_FT, new Car(1, 60, 8, 10, 0.5, 0.02).getLength());
+            Traffic.createSim(SimConfig.defaults().withLanes(1).withCarLengthFt(20).withSeed(1), List.of(unsized, sized));
+        } finally {
+            Constants.carLengthFt = saved;
+        }
+        assertEquals(20, unsized.getLength());
+        assertEquals(12, sized.getLength());
+    }
+
+    @Test
+    void synchronousSteppingShouldNotDependOnThreadCount() {
+        Traffic single = denseThreeLaneSim().useSynchronousStepping(null).startSim();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Traffic parallel = denseThreeLaneSim().useSynchronousStepping(pool).startSim();
+            for (int i = 0; i < single.getCarCount(); i++) {
+                assertEquals(single.getCar(i).getLane(), parallel.getCar(i).getLane());
+                assertEquals(single.getCar(i).getDistanceFromStart(), parallel.getCar(i).getDistanceFromStart());
+                assertEquals(single.getCar(i).getSpeed(), parallel.getCar(i).getSpeed());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static Traffic denseThreeLaneSim() {
+        List<Car> cars = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            cars.add(new Car(1, 40 + (i * 7) % 40, 8, 10 + i % 20, 0.5, 0.03));
+        }
+        Traffic t = Traffic.createSim(3, cars, Constants.dt, 5, false);
+        for (int i = 0; i < t.getCarCount(); i++) {
+            t.getCar(i).setLane(i % 3 + 1);
+            t.getCar(i).setDistanceFromStart(100 + (i / 3) * 40.0 + (i % 3) * 7);
+        }
+        return t;
+    }
+
+    @Test
+    void sweepRunsShouldBeReproducibleFromTheirSeed() {
+        SimConfig base = SimConfig.defaults().withSimTime(5).withSeed(42);
+        List<SimConfig> scenarios = SweepRunner.grid(base, new int[] {1, 3}, new int[] {20, 60}, new double[] {-1, 1500}, 2);
+        assertEquals(16, scenarios.size());
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<SweepRunner.Result> results = new ArrayList<>();
+            new SweepRunner(pool).run(scenarios, results::add);
+            assertEquals(scenarios.size(), results.size());
+
+            for (SweepRunner.Result r : results) {
+                SweepRunner.Result again = SweepRunner.runOne(r.config());
+                assertEquals(r.averageDistance(), again.averageDistance());
+                assertEquals(r.averageSpeed(), again.averageSpeed());
+                assertArrayEquals(r.carsPerLane(), again.carsPerLane());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void recordedTrajectoriesShouldReadBackTheFinalState() throws IOException {
+        for (boolean delta : new boolean[] {false, true}) {
+            Path file = Files.createTempFile("trajectory", ".trj");
+            try {
+                SimConfig config = SimConfig.defaults().withLanes(2).withCars(200).withSimTime(10).withSeed(5);
+                Traffic t = Traffic.createSim(config);
+                // 501 ticks, so the last sample is the final state
+                try (TrajectoryRecorder recorder = TrajectoryRecorder.open(file, config.dt(), 3, delta)) {
+                    t.addStepListener(recorder);
+                    t.startSim();
+                    assertEquals(t.getTick() / 3, recorder.samplesRecorded());
+                }
+
+                long samples = 0;
+                try (TrajectoryReader r = TrajectoryReader.open(file)) {
+                    assertEquals(delta, r.isDeltaEncoded());
+                    while (r.nextSample()) {
+                        samples++;
+                        if (r.tick() != t.getTick()) {
+                            continue;
+                        }
+                        while (r.nextVehicle()) {
+                            Car c = t.getCar(r.id());
+                            assertEquals(c.getLane(), r.lane());
+                            assertEquals(c.getDistanceFromStart(), r.position(), delta ? 1e-3 : 0);
+                            assertEquals((float) c.getSpeed(), r.speed(), 0);
+                        }
+                    }
+                }
+                assertEquals(t.getTick() / 3, samples);
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Test
+    void restoredCheckpointShouldContinueIdentically() throws IOException {
+        Path file = Files.createTempFile("traffic", ".ckpt");
+        try {
+            Traffic original = Traffic.createSim(SimConfig.defaults().withLanes(3).withCars(300).withRightLaneEnd(2500).withSimTime(8).withSeed(11));
+            for (int i = 0; i < 200; i++) {
+                original.step();
+            }
+            Checkpoint.save(original, file);
+            original.startSim();
+
+            Traffic restored = Checkpoint.restore(file);
+            assertEquals(200, restored.getTick());
+            restored.startSim();
+
+            assertEquals(original.getTick(), restored.getTick());
+            for (int i = 0; i < original.getCarCount(); i++) {
+                assertEquals(original.getCar(i).getLane(), restored.getCar(i).getLane());
+                assertEquals(original.getCar(i).getDistanceFromStart(), restored.getCar(i).getDistanceFromStart());
+                assertEquals(original.getCar(i).getSpeed(), restored.getCar(i).getSpeed());
+            }
+
+            Traffic fork = Checkpoint.restore(file, c -> c.withRightLaneEnd(-1));
+            assertEquals(-1, fork.getConfig().rightLaneEnd());
+
+            // The stepping mode and lane-change throttle come back too
+            SimConfig config = SimConfig.defaults().withLanes(3).withCars(300).withRightLaneEnd(1500).withSimTime(8).withSeed(12);
+            Traffic throttled = Traffic.createSim(config).useLaneChangeInterval(0.5).useSynchronousStepping(null);
+            for (int i = 0; i < 130; i++) {
+                throttled.step();
+            }
+            Checkpoint.save(throttled, file);
+            throttled.startSim();
+            Traffic resumed = Checkpoint.restore(file).startSim();
+            for (int i = 0; i < throttled.getCarCount(); i++) {
+                assertEquals(throttled.getCar(i).getLane(), resumed.getCar(i).getLane());
+                assertEquals(throttled.getCar(i).getDistanceFromStart(), resumed.getCar(i).getDistanceFromStart());
+            }
+
+            // State a checkpoint would miss is refused rather than dropped
+            Traffic open = Traffic.createSim(config.withCars(0).withRightLaneEnd(-1)).useOpenBoundary(3000, ArrivalProcess.poisson(2000));
+            assertThrows(IllegalStateException.class, () -> Checkpoint.save(open, file));
+            Traffic counted = Traffic.createSim(config);
+            counted.enableStatistics(1);
+            assertThrows(IllegalStateException.class, () -> Checkpoint.save(counted, file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void metricsShouldCountEventsWithoutChangingTheRun() {
+        SimConfig config = SimConfig.defaults().withLanes(3).withCars(300).withRightLaneEnd(2000).withSimTime(10).withSeed(5);
+        Traffic plain = Traffic.createSim(config);
+        plain.startSim();
+        Traffic measured = Traffic.createSim(config);
+        SimMetrics metrics = measured.enableMetrics();
+        measured.startSim();
+
+        assertEquals(measured.getTick(), metrics.steps());
+        assertEquals(metrics.steps(), metrics.timing(SimMetrics.Phase.STEP).count());
+        assertTrue(metrics.timing(SimMetrics.Phase.MOTION).count() > 0);
+        assertTrue(metrics.laneChanges() <= metrics.laneChangeEvaluations());
+        assertEquals(plain.getAverageDistance(), measured.getAverageDistance());
+        assertEquals(plain.getAverageSpeed(), measured.getAverageSpeed());
+    }
+
+    @Test
+    void freeFlowFastPathShouldMatchFullStepping() {
+        SimConfig sparse = SimConfig.defaults().withLanes(4).withCars(40).withRightLaneEnd(3000).withSimTime(60).withSeed(9);
+        Traffic full = Traffic.createSim(sparse).startSim();
+        Traffic fast = Traffic.createSim(sparse).useFreeFlowFastPath(2);
+        SimMetrics metrics = fast.enableMetrics();
+        fast.startSim();
+
+        for (int i = 0; i < full.getCarCount(); i++) {
+            assertEquals(full.getCar(i).getLane(), fast.getCar(i).getLane());
+            assertEquals(full.getCar(i).getDistanceFromStart(), fast.getCar(i).getDistanceFromStart());
+            assertEquals(full.getCar(i).getSpeed(), fast.getCar(i).getSpeed());
+        }
+        assertTrue(metrics.freeFlowMoves() > fast.getTick() * fast.getCarCount() / 2);
+    }
+
+    @Test
+    void openRoadShouldRecycleVehiclesThatLeave() {
+        SimConfig config = SimConfig.defaults().withLanes(3).withCars(0).withRightLaneEnd(-1).withSimTime(600).withSeed(3);
+        Traffic t = Traffic.createSim(config).useOpenBoundary(5000, ArrivalProcess.poisson(3000));
+        t.startSim();
+
+        OpenBoundary road = t.getOpenBoundary();
+        assertTrue(road.exited() > 300);
+        assertEquals(road.entered(), road.exited() + road.onRoad());
+        assertEquals(road.arrived(), road.entered() + road.queued());
+        assertTrue(road.capacity() < road.entered() / 4);
+        for (int i = 0; i < t.getCarCount(); i++) {
+            Car car = t.getCar(i);
+            assertTrue(car.getLane() == 0 || car.getDistanceFromStart() - car.getLength() / 2 < 5000);
+        }
+
+        Traffic scheduled = Traffic.createSim(config).useOpenBoundary(5000, ArrivalProcess.schedule(1, 2, 2, 30));
+        scheduled.startSim();
+        assertEquals(4, scheduled.getOpenBoundary().exited());
+        assertEquals(0, scheduled.getOpenBoundary().onRoad());
+    }
+
+    @Test
+    void roadNetworkShouldConserveVehiclesAndNotDependOnThreadCount() {
+        RoadNetwork single = corridor(null);
+        single.run(300);
+        try (ForkJoinPool pool = new ForkJoinPool(3)) {
+            RoadNetwork parallel = corridor(pool);
+            parallel.run(300);
+            for (int s = 0; s < single.segmentCount(); s++) {
+                assertArrayEquals(single.segment(s).carsPerLane(), parallel.segment(s).carsPerLane());
+                assertEquals(single.segment(s).getOpenBoundary().exited(), parallel.segment(s).getOpenBoundary().exited());
+            }
+            assertEquals(single.completed(), parallel.completed());
+        }
+
+        long arrived = 0;
+        long waiting = 0;
+        for (int s = 0; s < single.segmentCount(); s++) {
+            OpenBoundary road = single.segment(s).getOpenBoundary();
+            arrived += road.arrived();
+            waiting += road.queued() + road.waitingHandoffs();
+        }
+        assertTrue(single.segment(3).getOpenBoundary().exited() > 0);
+        assertEquals(arrived, single.completed() + single.onRoad() + waiting);
+    }
+
+    @Test
+    void handedOffVehicleShouldKeepItsPlaceAcrossSegments() {
+        // One car on a 4000 ft road, and the same car through twenty 200 ft segments in a row
+        SimConfig base = SimConfig.defaults().withLanes(1).withRightLaneEnd(-1);
+        RoadNetwork whole = new RoadNetwork(9, null);
+        whole.addSegment(base.withCars(1), 4000, null);
+        RoadNetwork chain = new RoadNetwork(9, null);
+        chain.addSegment(base.withCars(1), 200, null);
+        for (int s = 1; s < 20; s++) {
+            chain.connect(s - 1, chain.addSegment(base.withCars(0), 200, null), 1);
+        }
+        while (whole.completed() == 0) {
+            whole.step();
+        }
+        while (chain.completed() == 0 && chain.getTick() <= whole.getTick()) {
+            chain.step();
+        }
+        assertEquals(whole.getTick(), chain.getTick());
+    }
+
+    // A three-lane road that drops a lane, joined by an on-ramp, then splitting to an off-ramp
+    private static RoadNetwork corridor(ForkJoinPool pool) {
+        SimConfig base = SimConfig.defaults().withCars(0).withRightLaneEnd(-1);
+        RoadNetwork network = new RoadNetwork(21, pool);
+        int upstream = network.addSegment(base.withLanes(3).withRightLaneEnd(3500), 4000, ArrivalProcess.poisson(2400));
+        int onRamp = network.addSegment(base.withLanes(1), 1500, ArrivalProcess.poisson(500));
+        int mainline = network.addSegment(base.withLanes(2), 5000, null);
+        int offRamp = network.addSegment(base.withLanes(1), 1000, null);
+        int downstream = network.addSegment(base.withLanes(2), 3000, null);
+        return network.connect(upstream, mainline, 1)
+            .connect(onRamp, mainline, 1)
+            .connect(mainline, offRamp, 0.2)
+            .connect(mainline, downstream, 0.8);
+    }
+
+    @Test
+    void shardedRunShouldMatchSingleProcess() throws Exception {
+        SimConfig config = SimConfig.defaults().withLanes(3).withCars(300).withRightLaneEnd(2000).withSeed(5);
+        Traffic single = Traffic.createSim(config).useSynchronousStepping(null);
+        for (int i = 0; i < 400; i++) {
+            single.step();
+        }
+
+        VehicleStore sharded = new HeapVehicleStore(config.cars());
+        for (int i = 0; i < config.cars(); i++) {
+            sharded.add(0, VehicleType.FAST);
+        }
+        try (ShardCoordinator coordinator = new ShardCoordinator(config, new double[] {1200}, false)) {
+            List<Process> workers = coordinator.launchLocalWorkers();
+            coordinator.run(400, (id, vehicles, row) -> {
+                assertEquals(0, sharded.lane(id));
+                sharded.setLane(id, vehicles.lane(row));
+                sharded.setMotion(id, vehicles.speed(row), vehicles.position(row));
+            });
+            for (Process worker : workers) {
+                assertEquals(0, worker.waitFor());
+            }
+        }
+        for (int i = 0; i < single.getCarCount(); i++) {
+            assertEquals(single.store().lane(i), sharded.lane(i));
+            assertEquals(single.store().position(i), sharded.position(i));
+            assertEquals(single.store().speed(i), sharded.speed(i));
+        }
+
+        try (ShardCoordinator coordinator = new ShardCoordinator(config, new double[] {800, 1600}, true)) {
+            List<Process> workers = coordinator.launchLocalWorkers();
+            ShardCoordinator.Summary summary = coordinator.run(400);
+            for (Process worker : workers) {
+                assertEquals(0, worker.waitFor());
+            }
+            assertEquals(single.getCarCount(), summary.vehicles());
+            assertEquals(single.getAverageDistance(), summary.averageDistance(), 1e-9);
+            assertEquals(single.getAverageSpeed(), summary.averageSpeed(), 1e-9);
+            assertArrayEquals(single.carsPerLane(), summary.carsPerLane());
+        }
+    }
+
+    @Test
+    void kinematicsKernelShouldMatchScalarCode() {
+        SimRandom random = new SimRandom(17);
+        KinematicsKernel vector = new KinematicsKernel(103, true);
+        KinematicsKernel scalar = new KinematicsKernel(103, false);
+        for (int i = 0; i < 103; i++) {
+            double speed = i % 7 == 0 ? 0 : random.nextDouble() * 90;
+            double maxSpeed = 40 + random.nextDouble() * 40;
+            double maxAccel = i % 11 == 0 ? 0 : 6.7 + random.nextDouble() * 3.5;
+            double desired = 5 + random.nextDouble() * 30;
+            double kP = random.nextDouble() / 2.0 + 0.3;
+            double kD = random.nextDouble() / 20.0;
+            double gap = random.nextDouble() * 200 - 20;
+            double leaderSpeed = random.nextDouble() * 80;
+            for (KinematicsKernel k : new KinematicsKernel[] {vector, scalar}) {
+                k.speed[i] = speed;
+                k.maxSpeed[i] = maxSpeed;
+                k.maxAccel[i] = maxAccel;
+                k.desiredGap[i] = desired;
+                k.kP[i] = kP;
+                k.kD[i] = kD;
+                k.gap[i] = gap;
+                k.leaderSpeed[i] = leaderSpeed;
+                k.hasLeader[i] = i % 3 != 0;
+            }
+        }
+        vector.compute(103, 0.02);
+        scalar.compute(103, 0.02);
+        assertArrayEquals(scalar.newSpeed, vector.newSpeed);
+        assertArrayEquals(scalar.movement, vector.movement);
+
+        SimConfig config = SimConfig.defaults().withLanes(3).withCars(3000).withRightLaneEnd(20000).withSimTime(5).withSeed(8);
+        Traffic plain = Traffic.createSim(config).useSynchronousStepping(null).startSim();
+        Traffic batched = Traffic.createSim(config).useSynchronousStepping(null, true).startSim();
+        for (int i = 0; i < plain.getCarCount(); i++) {
+            assertEquals(plain.getCar(i).getLane(), batched.getCar(i).getLane());
+            assertEquals(plain.getCar(i).getDistanceFromStart(), batched.getCar(i).getDistanceFromStart());
+            assertEquals(plain.getCar(i).getSpeed(), batched.getCar(i).getSpeed());
+        }
+    }
+
+    @Test
+    void statisticsShouldCountDetectorCrossingsWithoutChangingTheRun() {
+        SimConfig config = SimConfig.defaults().withLanes(2).withCars(200).withRightLaneEnd(3000).withSeed(21);
+        for (boolean synchronous : new boolean[] {false, true}) {
+            Traffic plain = Traffic.createSim(config);
+            Traffic measured = Traffic.createSim(config);
+            if (synchronous) {
+                plain.useSynchronousStepping(null);
+                measured.useSynchronousStepping(null);
+            }
+            double[] start = new double[plain.getCarCount()];
+            for (int i = 0; i < start.length; i++) {
+                start[i] = plain.getIndexCarDist(i);
+            }
+            TrafficStats stats = measured.enableStatistics(20);
+            int upstream = stats.addDetector(1500);
+            int downstream = stats.addDetector(4000);
+            int section = stats.addSection(1000, 2500);
+            for (int tick = 0; tick < 3000; tick++) {
+                plain.step();
+                measured.step();
+                // The running averages agree with a rescan after every tick, lane changes included
+                assertEquals(plain.getAverageSpeed(), measured.getAverageSpeed(), 1e-9);
+                assertEquals(plain.getAverageDistance(), measured.getAverageDistance(), 1e-6);
+            }
+
+            for (int i = 0; i < start.length; i++) {
+                assertEquals(plain.getIndexCarDist(i), measured.getIndexCarDist(i));
+            }
+
+            for (int d : new int[] {upstream, downstream}) {
+                double x = d == upstream ? 1500 : 4000;
+                int crossed = 0;
+                for (int i = 0; i < start.length; i++) {
+                    if (start[i] < x && x <= plain.getIndexCarDist(i)) {
+                        crossed++;
+                    }
+                }
+                List<TrafficStats.Sample> series = stats.detectorSeries(d);
+                assertEquals(3, series.size());
+                double counted = 0;
+                for (TrafficStats.Sample sample : series) {
+                    counted += sample.flow(0) * (sample.end() - sample.start()) / 3600;
+                    assertEquals(sample.flow(0), sample.flow(1) + sample.flow(2), 1e-6);
+                }
+                assertEquals(crossed, counted, 1e-6);
+            }
+            assertTrue(stats.maxFlow(downstream) > 0);
+            for (TrafficStats.Sample sample : stats.detectorSeries(downstream)) {
+                assertTrue(!(sample.speed(0) > 80), sample.toString());
+            }
+            for (TrafficStats.Sample sample : stats.sectionSeries(section)) {
+                assertEquals(sample.flow(0), sample.density(0) * sample.speed(0), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    void scenarioFilesShouldLoadIntoARunThatContinuesTheOriginal() throws IOException {
+        SimConfig config = SimConfig.defaults().withLanes(3).withCars(500).withRightLaneEnd(4000).withSeed(12);
+        Traffic original = Traffic.createSim(config);
+        for (int tick = 0; tick < 200; tick++) {
+            original.step();
+        }
+        Path binary = Files.createTempFile("scenario", ".bin");
+        Path csv = Files.createTempFile("scenario", ".csv");
+        try {
+            Scenario.save(original, binary);
+            Scenario.saveCsv(original, csv);
+            Traffic fromBinary = Scenario.load(binary, config);
+            Traffic fromCsv = Scenario.load(csv, config);
+            for (int tick = 0; tick < 200; tick++) {
+                original.step();
+                fromBinary.step();
+                fromCsv.step();
+            }
+            assertEquals(original.getCarCount(), fromBinary.getCarCount());
+            assertEquals(original.getCarCount(), fromCsv.getCarCount());
+            for (int i = 0; i < original.getCarCount(); i++) {
+                for (Traffic loaded : new Traffic[] {fromBinary, fromCsv}) {
+                    assertEquals(original.getCar(i).getLane(), loaded.getCar(i).getLane());
+                    assertEquals(original.getCar(i).getDistanceFromStart(), loaded.getCar(i).getDistanceFromStart());
+                    assertEquals(original.getCar(i).getSpeed(), loaded.getCar(i).getSpeed());
+                }
+            }
+
+            Files.writeString(csv, Scenario.CSV_HEADER + "\n# one car\n\n4,100,30,60,8,10,0.5,0.02,15\n");
+            assertThrows(IOException.class, () -> Scenario.load(csv, config));
+            assertEquals(1, Scenario.load(csv, config.withLanes(4)).getCarCount());
+
+            // A header claiming far more vehicles than follow fails at the end of the data, not on allocation
+            ByteBuffer claim = ByteBuffer.allocate(Scenario.HEADER_BYTES + Scenario.RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            claim.putInt(Scenario.MAGIC).putInt(Scenario.VERSION).putInt(Integer.MAX_VALUE)
+                .putInt(1).putDouble(100).putDouble(30).putDouble(60).putDouble(8).putDouble(10).putDouble(0.5).putDouble(0.02).putDouble(15);
+            assertThrows(EOFException.class, () -> Scenario.load(new ByteArrayInputStream(claim.array()), config));
+        } finally {
+            Files.deleteIfExists(binary);
+            Files.deleteIfExists(csv);
+        }
+    }
+
+    @Test
+    void simulationServiceShouldRunSubmittedJobsAndStreamProgress() throws Exception {
+        try (SimulationService service = new SimulationService(0, 2).start()) {
+            HttpClient client = HttpClient.newHttpClient();
+            URI jobs = URI.create("http://localhost:" + service.port() + "/jobs");
+            List<String> ids = new ArrayList<>();
+            for (int seed = 1; seed <= 4; seed++) {
+                HttpResponse<String> submitted = client.send(HttpRequest.newBuilder(
+                        URI.create(jobs + "?lanes=2&cars=60&simTime=3&progressEvery=1&seed=" + seed))
+                        .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+                assertEquals(202, submitted.statusCode());
+                ids.add(submitted.headers().firstValue("Location").orElseThrow());
+            }
+
+            for (int i = 0; i < ids.size(); i++) {
+                HttpResponse<Stream<String>> events = client.send(HttpRequest.newBuilder(
+                        URI.create(jobs.resolve(ids.get(i)) + "/events")).build(), HttpResponse.BodyHandlers.ofLines());
+                List<String> lines = events.body().toList();
+                assertEquals(4, lines.size(), lines.toString());
+                assertTrue(lines.get(0).contains("\"state\":\"RUNNING\""));
+                String last = lines.get(lines.size() - 1);
+                assertTrue(last.contains("\"state\":\"DONE\""), last);
+
+                SimConfig config = SimConfig.defaults().withLanes(2).withCars(60).withSimTime(3).withSeed(i + 1);
+                Traffic direct = Traffic.createSim(config).startSim();
+                assertTrue(last.contains("\"averageDistance\":" + direct.getAverageDistance()), last);
+                assertEquals(last, client.send(HttpRequest.newBuilder(jobs.resolve(ids.get(i))).build(),
+                        HttpResponse.BodyHandlers.ofString()).body().strip());
+            }
+
+            HttpResponse<String> bad = client.send(HttpRequest.newBuilder(URI.create(jobs + "?lanes=0"))
+                    .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(400, bad.statusCode());
+            HttpResponse<String> scenario = client.send(HttpRequest.newBuilder(URI.create(jobs + "?lanes=1&simTime=1"))
+                    .POST(HttpRequest.BodyPublishers.ofString(Scenario.CSV_HEADER + "\n1,100,30,60,8,10,0.5,0.02,15\n"))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(202, scenario.statusCode());
+        }
+
+        // A stream opened late gets only the latest events, and finished jobs are forgotten after the retention period
+        for (Duration retention : new Duration[] {Duration.ofMinutes(10), Duration.ZERO}) {
+            try (SimulationService service = new SimulationService(0, 1, retention).start()) {
+                HttpClient client = HttpClient.newHttpClient();
+                URI jobs = URI.create("http://localhost:" + service.port() + "/jobs");
+                // Long enough without retention that the stream surely opens before the job finishes
+                double simTime = retention.isZero() ? 400 : 40;
+                URI job = jobs.resolve(client.send(HttpRequest.newBuilder(URI.create(jobs + "?lanes=1&cars=5&progressEvery=0.02&simTime=" + simTime))
+                        .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString())
+                        .headers().firstValue("Location").orElseThrow());
+                if (!retention.isZero()) {
+                    while (!client.send(HttpRequest.newBuilder(job).build(), HttpResponse.BodyHandlers.ofString()).body().contains("DONE")) {
+                        Thread.sleep(10);
+                    }
+                }
+                List<String> lines = client.send(HttpRequest.newBuilder(URI.create(job + "/events")).build(),
+                        HttpResponse.BodyHandlers.ofLines()).body().toList();
+                assertTrue(lines.get(lines.size() - 1).contains("\"state\":\"DONE\""));
+                if (retention.isZero()) {
+                    assertEquals(404, client.send(HttpRequest.newBuilder(job).build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+                    assertEquals("[]", client.send(HttpRequest.newBuilder(jobs).build(), HttpResponse.BodyHandlers.ofString()).body().strip());
+                } else {
+                    assertTrue(lines.size() <= SimulationService.KEPT_EVENTS + 1, "" + lines.size());
+                    assertEquals(200, client.send(HttpRequest.newBuilder(job).build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+                }
+            }
+        }
+    }
+
+    @Test
+    void detectorShouldMeasureACarsSpeed() {
+        Car car = new Car(0, 60, 10, 10, 0.5, 0.02);
+        car.setDistanceFromStart(100);
+        Traffic t = Traffic.createSim(1, List.of(car), Constants.dt, 10, false);
+        TrafficStats stats = t.enableStatistics(10);
+        int d = stats.addDetector(500);
+        int s = stats.addSection(400, 600);
+        t.startSim();
+        // Long since at its top speed, so every measure agrees on it
+        assertEquals(60, t.getAverageSpeed(), 1e-9);
+        assertEquals(1, stats.detectorSeries(d).size());
+        assertEquals(360, stats.detectorSeries(d).get(0).flow(0), 1e-9);
+        assertEquals(60, stats.detectorSeries(d).get(0).speed(0), 1e-6);
+        assertEquals(60, stats.sectionSeries(s).get(0).speed(0), 1e-6);
+    }
+
+    @Test
+    void cellularModelShouldMatchTheDetailedModelsFlowAndQueueDensity() {
+        for (double rightLaneEnd : new double[] {-1, 3000}) {
+            SimConfig config = SimConfig.defaults().withLanes(2).withCars(100).withRightLaneEnd(rightLaneEnd)
+                    .withSimTime(60).withSeed(21);
+            Traffic detailed = Traffic.createSim(config);
+            TrafficStats fine = detailed.enableStatistics(60);
+            Traffic cellular = Traffic.createSim(config.withDt(1)).useCellularModel();
+            TrafficStats coarse = cellular.enableStatistics(60);
+            for (TrafficStats stats : new TrafficStats[] {fine, coarse}) {
+                stats.addDetector(2000);
+                stats.addSection(1000, 3000);
+            }
+            detailed.startSim();
+            cellular.startSim();
+
+            // Calibration: flow past the detector within a fifth of the detailed model's
+            double flow = fine.detectorSeries(0).get(0).flow(0);
+            assertEquals(flow, coarse.detectorSeries(0).get(0).flow(0), flow * 0.2);
+            if (rightLaneEnd > 0) {
+                // and the queue before the lane drop about as dense
+                double density = fine.sectionSeries(0).get(0).density(0);
+                assertEquals(density, coarse.sectionSeries(0).get(0).density(0), density * 0.15);
+            }
+
+            assertEquals(100, cellular.carsPerLane()[0] + cellular.carsPerLane()[1]);
+            LaneIndex index = cellular.laneIndex();
+            for (int lane = 1; lane <= 2; lane++) {
+                for (int s = 1; s < index.size(lane); s++) {
+                    double gap = cellular.getIndexCarDist(index.carAt(lane, s)) - cellular.getIndexCarDist(index.carAt(lane, s - 1));
+                    assertTrue(gap >= CellularEngine.CELL_FT, "two cars share a cell in lane " + lane);
+                }
+            }
+            Traffic again = Traffic.createSim(config.withDt(1)).useCellularModel().startSim();
+            for (int i = 0; i < 100; i++) {
+                assertEquals(cellular.getCar(i).getDistanceFromStart(), again.getCar(i).getDistanceFromStart());
+            }
+        }
+    }
+
+    @Test
+    void throttledLaneChangesShouldEvaluateLessWithoutMissingTheMerge() {
+        SimConfig config = SimConfig.defaults().withLanes(3).withCars(1000).withRightLaneEnd(4000).withSimTime(30).withSeed(4);
+        Traffic every = Traffic.createSim(config);
+        SimMetrics everyMetrics = every.enableMetrics();
+        every.startSim();
+        Traffic throttled = Traffic.createSim(config).useLaneChangeInterval(0.2);
+        SimMetrics throttledMetrics = throttled.enableMetrics();
+        throttled.startSim();
+
+        assertTrue(throttledMetrics.laneChecksSkipped() > 0);
+        assertTrue(throttledMetrics.laneChangeEvaluations() * 3 < everyMetrics.laneChangeEvaluations());
+        assertEquals(every.getAverageDistance(), throttled.getAverageDistance(), every.getAverageDistance() * 0.01);
+        // The merge zone is never throttled, so no more cars end up held at the lane end
+        assertTrue(throttledMetrics.laneEndStops() <= everyMetrics.laneEndStops() * 1.1 + 10);
+
+        // Interval 0 is the unthrottled model
+        Traffic off = Traffic.createSim(config).useLaneChangeInterval(0).startSim();
+        for (int i = 0; i < off.getCarCount(); i++) {
+            assertEquals(every.getIndexCarDist(i), off.getIndexCarDist(i));
+        }
+    }
+
+    @Test
+    void mappedStoreShouldRunIdenticallyAndBeReadableFromOutside() throws IOException {
+        Path file = Files.createTempFile("vehicles", ".tvs");
+        Path open = Files.createTempFile("open", ".tvs");
+        Path ckpt = Files.createTempFile("mapped", ".ckpt");
+        try {
+            SimConfig config = SimConfig.defaults().withLanes(3).withCars(300).withRightLaneEnd(2500).withSimTime(8).withSeed(12);
+            Traffic heap = Traffic.createSim(config);
+            Traffic mapped = Traffic.createSim(config, file);
+            assertTrue(mapped.store() instanceof MappedVehicleStore);
+
+            MappedVehicleStore reader = MappedVehicleStore.openReadOnly(file);
+            assertEquals(300, reader.size());
+            for (int i = 0; i < 100; i++) {
+                heap.step();
+                mapped.step();
+            }
+            long sequence = reader.sequence();
+            reader.refresh();
+            assertEquals(0, sequence % 2);
+            assertEquals(100, reader.tick());
+            for (int i = 0; i < 300; i++) {
+                assertEquals(heap.getIndexCarDist(i), reader.position(i));
+                assertEquals(heap.store().lane(i), reader.lane(i));
+            }
+            assertEquals(sequence, reader.sequence());
+            assertThrows(java.nio.ReadOnlyBufferException.class, () -> reader.setPosition(0, 1));
+
+            Checkpoint.save(mapped, ckpt);
+            heap.startSim();
+            mapped.startSim();
+            for (int i = 0; i < 300; i++) {
+                assertEquals(heap.getIndexCarDist(i), mapped.getIndexCarDist(i));
+            }
+            Traffic restored = Checkpoint.restore(ckpt).startSim();
+            for (int i = 0; i < 300; i++) {
+                assertEquals(heap.getIndexCarDist(i), restored.getIndexCarDist(i));
+            }
+
+            // An open road adds vehicles past the starting capacity, growing the file under the reader
+            SimConfig road = config.withCars(10).withRightLaneEnd(-1).withSimTime(60);
+            Traffic heapRoad = Traffic.createSim(road).useOpenBoundary(5000, ArrivalProcess.poisson(3000)).startSim();
+            Traffic mappedRoad = Traffic.createSim(road, open).useOpenBoundary(5000, ArrivalProcess.poisson(3000)).startSim();
+            MappedVehicleStore follower = MappedVehicleStore.openReadOnly(open);
+            assertTrue(follower.size() > 10);
+            assertEquals(heapRoad.store().size(), follower.size());
+            for (int i = 0; i < follower.size(); i++) {
+                assertEquals(heapRoad.store().position(i), follower.position(i));
+                assertEquals(heapRoad.store().maxSpeed(i), follower.maxSpeed(i));
+                assertEquals(heapRoad.store().lane(i), follower.lane(i));
+            }
+            assertEquals(mappedRoad.getAverageSpeed(), heapRoad.getAverageSpeed());
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(open);
+            Files.deleteIfExists(ckpt);
+        }
+    }
+
+    @Test
+    void fleetOfVehicleTypesShouldShareParametersAndRunLikeAPlainStore() throws IOException {
+        SimConfig config = SimConfig.defaults().withLanes(3).withCars(300).withRightLaneEnd(2500).withSimTime(8).withSeed(13);
+        Traffic fleet = Traffic.createSim(config, VehicleType.FAST, VehicleType.MEDIUM, VehicleType.MEDIUM, VehicleType.SLOW);
+        TypedVehicleStore store = (TypedVehicleStore) fleet.store();
+        assertEquals(300, store.size());
+        assertEquals(3, store.typeCount());
+        int[] perType = new int[3];
+        for (int id = 0; id < store.size(); id++) {
+            VehicleType type = store.type(store.typeOf(id));
+            perType[store.typeOf(id)]++;
+            assertEquals(type.maxSpeedMPH(), store.maxSpeed(id));
+            assertEquals(type.kD(), store.kD(id));
+            assertEquals(Constants.carLengthFt, store.length(id));
+        }
+        assertTrue(perType[store.typeId(VehicleType.MEDIUM)] > perType[store.typeId(VehicleType.SLOW)]);
+
+        // Checkpoints expand the types, so a plain store carries on identically
+        Path file = Files.createTempFile("fleet", ".ckpt");
+        try {
+            for (int i = 0; i < 100; i++) {
+                fleet.step();
+            }
+            Checkpoint.save(fleet, file);
+            Traffic plain = Checkpoint.restore(file);
+            assertFalse(plain.store() instanceof TypedVehicleStore);
+            fleet.startSim();
+            plain.startSim();
+            for (int i = 0; i < 300; i++) {
+                assertEquals(fleet.getIndexCarDist(i), plain.getIndexCarDist(i));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        // Arrivals on an open road come from the fleet, without new types
+        Traffic open = Traffic.createSim(config.withCars(0).withRightLaneEnd(-1).withSimTime(60), VehicleType.SLOW)
+                .useOpenBoundary(5000, ArrivalProcess.poisson(3000)).startSim();
+        assertTrue(open.store().size() > 0);
+        assertEquals(1, ((TypedVehicleStore) open.store()).typeCount());
+
+        // A fleet-built segment takes vehicles handed on from upstream into freshly allocated slots
+        SimConfig road = SimConfig.defaults().withLanes(2).withCars(0).withRightLaneEnd(-1);
+        RoadNetwork network = new RoadNetwork(3, null);
+        int upstream = network.addSegment(road, 2000, ArrivalProcess.poisson(2400), VehicleType.FAST, VehicleType.SLOW);
+        int downstream = network.addSegment(road, 2000, null, VehicleType.MEDIUM);
+        network.connect(upstream, downstream, 1).run(120);
+        assertTrue(network.segment(downstream).getOpenBoundary().entered() > 0);
+        assertTrue(network.completed() > 0);
+        TypedVehicleStore handedOn = (TypedVehicleStore) network.segment(downstream).store();
+        assertEquals(2, handedOn.typeCount());
+        for (int id = 0; id < handedOn.size(); id++) {
+            if (handedOn.lane(id) > 0) {
+                VehicleType type = handedOn.type(handedOn.typeOf(id));
+                assertTrue(type == VehicleType.FAST || type == VehicleType.SLOW);
+            }
+        }
+
+        // Types are interned on their parameters, and vehicles without one are refused
+        assertEquals(handedOn.typeId(VehicleType.FAST), handedOn.typeId(new VehicleType("renamed", 70, 10, 10, 0.7, 0.03, Constants.carLengthFt)));
+        assertThrows(UnsupportedOperationException.class, () -> handedOn.add(1, 60, 8, 10, 0.5, 0.02, 15));
+        int plainSegment = network.addSegment(road, 2000, ArrivalProcess.poisson(2400));
+        assertThrows(IllegalArgumentException.class, () -> network.connect(plainSegment, downstream, 1));
+        network.connect(downstream, plainSegment, 1);
+
+        // Grouping each kernel chunk by type doesn't change a synchronous run
+        SimConfig dense = config.withCars(3000).withRightLaneEnd(20000).withSimTime(5);
+        VehicleType[] types = {VehicleType.FAST, VehicleType.MEDIUM, VehicleType.SLOW};
+        Traffic perCar = Traffic.createSim(dense, types).useSynchronousStepping(null).startSim();
+        Traffic grouped = Traffic.createSim(dense, types).useSynchronousStepping(null, true).startSim();
+        for (int i = 0; i < perCar.getCarCount(); i++) {
+            assertEquals(perCar.getCar(i).getLane(), grouped.getCar(i).getLane());
+            assertEquals(perCar.getCar(i).getDistanceFromStart(), grouped.getCar(i).getDistanceFromStart());
+            assertEquals(perCar.getCar(i).getSpeed(), grouped.getCar(i).getSpeed());
+        }
+
+        // Cars built from a type are independent of each other
+        Car a = VehicleType.FAST.newCar(1);
+        Car b = VehicleType.FAST.newCar(1);
+        a.setDistanceFromStart(100);
+        assertEquals(0, b.getDistanceFromStart());
+        assertEquals(VehicleType.FAST.maxSpeedMPH(), b.getMaxSpeed());
+    }
+
+    @Test
+    void steadyStateMonitorShouldEndTheRunOnceTrafficSettles() {
+        SimConfig config = SimConfig.defaults().withLanes(2).withCars(0).withRightLaneEnd(-1).withSimTime(1200).withDt(0.1).withSeed(5);
+        Traffic t = Traffic.createSim(config).useOpenBoundary(5000, ArrivalProcess.poisson(2000));
+        SteadyStateMonitor monitor = t.stopWhenSteady(60, 0.05);
+        t.startSim();
+
+        assertTrue(monitor.converged());
+        assertTrue(t.isStopped());
+        assertEquals(t.getTick(), monitor.ticksUsed());
+        assertEquals(t.getTick(), monitor.convergedTick());
+        // Two windows at the least, well short of the full 12001 ticks
+        assertTrue(t.getTick() >= 2 * 600);
+        assertTrue(t.getTick() < 6000);
+        assertTrue(monitor.largestChange() <= 0.05);
+        assertEquals(2000, monitor.meanFlow(), 2000 * 0.2);
+        assertEquals(1, monitor.laneShares()[0] + monitor.laneShares()[1], 1e-9);
+        assertTrue(monitor.meanSpeed() > 30);
+
+        // Watching doesn't change the run
+        Traffic unwatched = Traffic.createSim(config).useOpenBoundary(5000, ArrivalProcess.poisson(2000));
+        for (long i = 0; i < t.getTick(); i++) {
+            unwatched.step();
+        }
+        assertEquals(unwatched.store().size(), t.store().size());
+        for (int i = 0; i < t.store().size(); i++) {
+            assertEquals(unwatched.store().position(i), t.store().position(i));
+        }
+
+        // A zero tolerance never settles, and the run goes the distance
+        Traffic strict = Traffic.createSim(config.withSimTime(300)).useOpenBoundary(5000, ArrivalProcess.poisson(2000));
+        SteadyStateMonitor never = strict.stopWhenSteady(60, 0);
+        strict.startSim();
+        assertFalse(never.converged());
+        assertEquals(3001, strict.getTick());
+        assertEquals(-1, never.convergedTick());
+    }
 }
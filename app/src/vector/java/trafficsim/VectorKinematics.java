@@ -0,0 +1,42 @@
+package trafficsim;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The vectorized body of {@link KinematicsKernel#compute}. It lives in the
+ * {@code vector} source set, the only one compiled against the incubator
+ * module, and {@code KinematicsKernel} loads it by name only when the module
+ * is present. Clamping the speed change to
+ * [-maxDelta, maxDelta] gives the same value as the scalar
+ * {@code copySign} branch, signed zeros included.
+ */
+final class VectorKinematics implements KinematicsKernel.VectorPass {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    /** Handles the longest prefix of [0, n) that fills whole vectors; returns its length. */
+    @Override
+    public int compute(KinematicsKernel k, int n, double dt) {
+        int bound = SPECIES.loopBound(n);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            DoubleVector speed = DoubleVector.fromArray(SPECIES, k.speed, i);
+            DoubleVector maxSpeed = DoubleVector.fromArray(SPECIES, k.maxSpeed, i);
+            VectorMask<Double> hasLeader = VectorMask.fromArray(SPECIES, k.hasLeader, i);
+
+            DoubleVector error = DoubleVector.fromArray(SPECIES, k.gap, i).sub(DoubleVector.fromArray(SPECIES, k.desiredGap, i));
+            DoubleVector derivative = DoubleVector.fromArray(SPECIES, k.leaderSpeed, i).sub(speed);
+            DoubleVector adjustment = DoubleVector.fromArray(SPECIES, k.kP, i).mul(error)
+                .add(DoubleVector.fromArray(SPECIES, k.kD, i).mul(derivative));
+            DoubleVector controlled = maxSpeed.min(speed.add(adjustment).max(0));
+            DoubleVector target = maxSpeed.blend(controlled, hasLeader);
+
+            DoubleVector maxDelta = DoubleVector.fromArray(SPECIES, k.maxAccel, i).mul(dt);
+            DoubleVector speedDiff = target.sub(speed).max(maxDelta.neg()).min(maxDelta);
+            DoubleVector next = speed.add(speedDiff);
+            next.intoArray(k.newSpeed, i);
+            next.mul(5280).div(3600).mul(dt).intoArray(k.movement, i);
+        }
+        return bound;
+    }
+}